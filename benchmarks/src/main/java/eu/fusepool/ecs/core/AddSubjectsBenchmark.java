@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.impl.utils.simple.SimpleGraph;
+import org.apache.clerezza.rdf.utils.GraphNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding the subjects of an enhanced content item and the descriptions of
+ * these entities with StanbolEnhancerMetadataGenerator.addSubjects, for the
+ * metadata of a stub enhancement chain and the different entity contexts.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AddSubjectsBenchmark {
+
+    @Param({"10000"})
+    public int items;
+    @Param({"5", "50"})
+    public int entitiesPerItem;
+    @Param({"direct", "cbd", "full"})
+    public String entityContext;
+    private SyntheticContent content;
+    private StanbolEnhancerMetadataGenerator metadataGenerator;
+    private IRI contentItem;
+    private Graph metadata;
+
+    @Setup
+    public void setUp() {
+        content = new SyntheticContent(items, items / 10, 3, 2000, 42);
+        final EntityDescriptionCache entityDescriptionCache =
+                Stubs.entityDescriptionCache(content.getGraph());
+        metadataGenerator = new StanbolEnhancerMetadataGenerator();
+        Stubs.inject(metadataGenerator, "entityDescriptionCache", entityDescriptionCache);
+        Stubs.inject(metadataGenerator, "entityContext",
+                StanbolEnhancerMetadataGenerator.EntityContext.valueOf(
+                entityContext.toUpperCase()));
+        contentItem = content.getContentItems()[items / 2];
+        metadata = Stubs.enhancementResults(contentItem,
+                Arrays.copyOfRange(content.getEntities(), 0, entitiesPerItem));
+    }
+
+    @Benchmark
+    public Set<IRI> addSubjects() {
+        final GraphNode additionsNode = new GraphNode(contentItem, new SimpleGraph());
+        return metadataGenerator.addSubjects(additionsNode,
+                new GraphNode(contentItem, content.getGraph()), metadata);
+    }
+}
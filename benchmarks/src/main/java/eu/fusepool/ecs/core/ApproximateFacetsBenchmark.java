@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting the subject facets of all content items or of the content items
+ * having a frequent subject, exactly and estimated from a sample as done
+ * with facetMode=approximate. The accuracy of the estimate, the share of
+ * the exact top facets found and the mean relative error of their counts,
+ * is reported as secondary result of the estimated benchmark.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ApproximateFacetsBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int items;
+    @Param({"all", "frequentSubject"})
+    public String query;
+    @Param({"1000", "5000"})
+    public int sampleSize;
+    @Param({"10"})
+    public int maxFacets;
+    private final Set<String> ignoredValues = Collections.emptySet();
+    private FilterIndex filterIndex;
+    private RoaringBitmap filtered;
+
+    @Setup
+    public void setUp() {
+        final SyntheticContent content = new SyntheticContent(items, items / 10, 5, 100, 42);
+        filterIndex = new FilterIndex(DC.subject, RDF.type);
+        filterIndex.build(content.getGraph());
+        if (query.equals("all")) {
+            filtered = filterIndex.getAll();
+        } else {
+            final Map<IRI, Collection<IRI>> values = new HashMap<IRI, Collection<IRI>>();
+            values.put(DC.subject, Collections.singleton(content.getEntities()[0]));
+            filtered = filterIndex.filter(values);
+        }
+    }
+
+    /**
+     * The accuracy of the estimate, computed before every iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Accuracy {
+
+        public double recall;
+        public double relativeError;
+
+        @Setup(Level.Iteration)
+        public void compute(ApproximateFacetsBenchmark benchmark) {
+            final TopFacets exact = benchmark.exact();
+            final TopFacets estimated = benchmark.estimated(this);
+            final Map<String, Integer> exactCounts = new HashMap<String, Integer>();
+            for (int i = 0; i < exact.size(); i++) {
+                exactCounts.put(exact.getValue(i), exact.getCount(i));
+            }
+            int found = 0;
+            double errors = 0;
+            for (int i = 0; i < estimated.size(); i++) {
+                final Integer exactCount = exactCounts.get(estimated.getValue(i));
+                if (exactCount != null) {
+                    found++;
+                    errors += Math.abs(estimated.getCount(i) - exactCount)
+                            / (double) exactCount;
+                }
+            }
+            recall = exact.size() == 0 ? 1 : found / (double) exact.size();
+            relativeError = found == 0 ? 0 : errors / found;
+        }
+    }
+
+    @Benchmark
+    public TopFacets exact() {
+        final TopFacets topFacets = new TopFacets(maxFacets);
+        filterIndex.countFacets(DC.subject, filtered, ignoredValues, topFacets);
+        topFacets.finish();
+        return topFacets;
+    }
+
+    /**
+     * @param accuracy only taken so that it is reported with the result
+     */
+    @Benchmark
+    public TopFacets estimated(Accuracy accuracy) {
+        final TopFacets topFacets = new TopFacets(maxFacets);
+        filterIndex.estimateFacets(DC.subject, filtered, ignoredValues, topFacets, sampleSize);
+        topFacets.finish();
+        return topFacets;
+    }
+}
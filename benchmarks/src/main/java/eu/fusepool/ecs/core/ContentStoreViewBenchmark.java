@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.rdf.ontologies.SIOC;
+import org.apache.clerezza.rdf.utils.GraphNode;
+import org.apache.stanbol.commons.indexedgraph.IndexedGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Computing a ContentStoreView with ContentStoreImpl.createContentStoreView.
+ * Views restricted by subjects are answered by the filter index, views with
+ * a search string by a stub IndexService returning a fixed set of matches.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ContentStoreViewBenchmark {
+
+    /**
+     * The number of content items the stub IndexService returns
+     */
+    private static final int SEARCH_MATCHES = 1000;
+    private static final IRI STORE = new IRI("http://example.org/ecs/");
+    private static final IRI VIEW = new IRI("http://example.org/ecs/?view");
+    @Param({"10000", "100000", "1000000"})
+    public int items;
+    @Param({"10"})
+    public int pageSize;
+    private SyntheticContent content;
+    private ContentStoreImpl contentStore;
+    private File snippetDirectory;
+    private List<IRI> subjects;
+    private final List<IRI> noIris = Collections.emptyList();
+    private final List<String> noSearchs = Collections.emptyList();
+
+    @Setup
+    public void setUp() throws IOException {
+        content = new SyntheticContent(items, items / 10, 3, 2000, 42);
+        final Graph graph = content.getGraph();
+        final EntityDescriptionCache entityDescriptionCache =
+                Stubs.entityDescriptionCache(graph);
+        final StanbolEnhancerMetadataGenerator metadataGenerator =
+                new StanbolEnhancerMetadataGenerator();
+        metadataGenerator.getFilterIndex().build(graph);
+        snippetDirectory = File.createTempFile("snippets", "");
+        snippetDirectory.delete();
+        final SnippetIndex snippetIndex = new SnippetIndex(snippetDirectory);
+        Stubs.inject(metadataGenerator, "snippetIndex", snippetIndex);
+        final List<BlankNodeOrIRI> matches = new ArrayList<BlankNodeOrIRI>();
+        for (int i = 0; i < SEARCH_MATCHES; i++) {
+            final IRI contentItem = content.getContentItems()[i];
+            matches.add(contentItem);
+            final Iterator<Triple> texts = graph.filter(contentItem, SIOC.content, null);
+            snippetIndex.put(contentItem, ((Literal) texts.next().getObject()).getLexicalForm());
+        }
+        contentStore = new ContentStoreImpl();
+        Stubs.inject(contentStore, "metadataGenerator", metadataGenerator);
+        Stubs.inject(contentStore, "entityDescriptionCache", entityDescriptionCache);
+        Stubs.inject(contentStore, "contentGraphProvider", Stubs.contentGraphProvider(graph));
+        Stubs.inject(contentStore, "indexService", Stubs.indexService(matches));
+        //two frequent subjects
+        subjects = new ArrayList<IRI>();
+        subjects.add(content.getEntities()[0]);
+        subjects.add(content.getEntities()[1]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Stubs.delete(snippetDirectory);
+    }
+
+    @Benchmark
+    public GraphNode subjects() {
+        return contentStore.createContentStoreView(new IndexedGraph(), STORE, VIEW,
+                subjects, noIris, noSearchs, pageSize, 0, 10, false, null, false);
+    }
+
+    @Benchmark
+    public GraphNode search() {
+        return contentStore.createContentStoreView(new IndexedGraph(), STORE, VIEW,
+                noIris, noIris, Collections.singletonList("energy"), pageSize, 0, 10,
+                false, null, false);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Selecting the facets with the highest counts with TopFacets, for skewed
+ * counts as collected for a query matching many content items.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FacetSortingBenchmark {
+
+    @Param({"1000", "100000"})
+    public int facetValues;
+    @Param({"10", "100"})
+    public int maxFacets;
+    private List<Map.Entry<String, Integer>> facets;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final SyntheticContent.Zipf zipf = new SyntheticContent.Zipf(facetValues, 1.0);
+        final int[] counts = new int[facetValues];
+        for (int i = 0; i < facetValues * 10; i++) {
+            counts[zipf.sample(random)]++;
+        }
+        facets = new ArrayList<Map.Entry<String, Integer>>(facetValues);
+        for (int i = 0; i < facetValues; i++) {
+            facets.add(new AbstractMap.SimpleEntry<String, Integer>(
+                    "http://example.org/entity/" + i, counts[i]));
+        }
+        Collections.shuffle(facets, random);
+    }
+
+    @Benchmark
+    public TopFacets topFacets() {
+        final TopFacets topFacets = new TopFacets(maxFacets);
+        for (Map.Entry<String, Integer> facet : facets) {
+            topFacets.offer(facet.getKey(), facet.getValue());
+        }
+        topFacets.finish();
+        return topFacets;
+    }
+}
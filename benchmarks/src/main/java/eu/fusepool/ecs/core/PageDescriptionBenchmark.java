@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.ontologies.ECS;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.DCTERMS;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+import org.apache.clerezza.rdf.ontologies.SIOC;
+import org.apache.stanbol.commons.indexedgraph.IndexedGraph;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Describing a page of content items and their subjects with DescriptionBatch
+ * as done for a result of the content store, compared to describing every
+ * resource on its own as done before. The lock acquisitions per operation
+ * are reported as secondary result.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PageDescriptionBenchmark {
+
+    @Param({"10000"})
+    public int items;
+    @Param({"10", "100"})
+    public int pageSize;
+    private SyntheticContent content;
+    private EntityDescriptionCache entityDescriptionCache;
+    private List<IRI> page;
+    private List<IRI> pageSubjects;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class LockCounter {
+
+        public long lockAcquisitions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lockAcquisitions = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        content = new SyntheticContent(items, items / 10, 3, 2000, 42);
+        entityDescriptionCache = Stubs.entityDescriptionCache(content.getGraph());
+        final List<IRI> contentItems = new ArrayList<IRI>();
+        Collections.addAll(contentItems, content.getContentItems());
+        page = contentItems.subList(items / 2, items / 2 + pageSize);
+        pageSubjects = new ArrayList<IRI>();
+        final Graph graph = content.getGraph();
+        for (IRI contentItem : page) {
+            final Iterator<Triple> subjects = graph.filter(contentItem, DC.subject, null);
+            while (subjects.hasNext()) {
+                pageSubjects.add((IRI) subjects.next().getObject());
+            }
+        }
+    }
+
+    @Benchmark
+    public Graph batch(LockCounter counter) {
+        final long before = DescriptionBatch.getLockAcquisitions();
+        final Graph result = new IndexedGraph();
+        final DescriptionBatch batch = new DescriptionBatch(entityDescriptionCache);
+        for (IRI contentItem : page) {
+            batch.addContentItem(contentItem);
+        }
+        for (IRI subject : pageSubjects) {
+            batch.addEntity(subject);
+        }
+        batch.fetch(content.getGraph(), result, false);
+        counter.lockAcquisitions += DescriptionBatch.getLockAcquisitions() - before;
+        return result;
+    }
+
+    /**
+     * The description as it was added before DescriptionBatch, locking the
+     * content graph for every content item and uncached entity.
+     */
+    @Benchmark
+    public Graph perItem(LockCounter counter) {
+        final Graph graph = content.getGraph();
+        final Graph result = new IndexedGraph();
+        for (IRI contentItem : page) {
+            final Lock l = graph.getLock().readLock();
+            l.lock();
+            counter.lockAcquisitions++;
+            try {
+                addRelevantDescription(graph, contentItem, result);
+            } finally {
+                l.unlock();
+            }
+        }
+        for (IRI subject : pageSubjects) {
+            result.addAll(entityDescriptionCache.getRepresentation(subject));
+            if (entityDescriptionCache.getCachedLocalDescription(subject) == null) {
+                counter.lockAcquisitions++;
+            }
+            result.addAll(entityDescriptionCache.getLocalDescription(subject, graph));
+        }
+        return result;
+    }
+
+    private static void addRelevantDescription(Graph graph, IRI contentItem, Graph result) {
+        if (graph.filter(contentItem, ECS.textPreview, null).hasNext()) {
+            copy(graph, contentItem, ECS.textPreview, result);
+            copy(graph, contentItem, ECS.snippet, result);
+        } else {
+            final Iterator<Triple> contents = graph.filter(contentItem, SIOC.content, null);
+            while (contents.hasNext()) {
+                final Literal text = (Literal) contents.next().getObject();
+                result.add(new TripleImpl(contentItem, ECS.textPreview,
+                        new PlainLiteralImpl(TextPreviews.preview(text.getLexicalForm()),
+                        text.getLanguage())));
+            }
+        }
+        copy(graph, contentItem, DCTERMS.title, result);
+        copy(graph, contentItem, DCTERMS.abstract_, result);
+        copy(graph, contentItem, RDFS.comment, result);
+        copy(graph, contentItem, DC.description, result);
+        copy(graph, contentItem, ContentStoreImpl.MEDIA_TITLE, result);
+    }
+
+    private static void copy(Graph graph, IRI contentItem, IRI property, Graph result) {
+        final Iterator<Triple> triples = graph.filter(contentItem, property, null);
+        while (triples.hasNext()) {
+            result.add(triples.next());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Storing a content item in the snippet index and getting the snippets for
+ * a search, depending on the length of the text. Getting the snippets only
+ * reads the index, not the text.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnippetBenchmark {
+
+    @Param({"1000", "100000"})
+    public int contentLength;
+    private final IRI contentItem = new IRI("http://example.org/ecs/content/0");
+    private final Collection<String> searchs = Arrays.asList("energy", "*patent*");
+    private File directory;
+    private SnippetIndex snippetIndex;
+    private String text;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = File.createTempFile("snippets", "");
+        directory.delete();
+        snippetIndex = new SnippetIndex(directory);
+        text = SyntheticContent.text(new Random(42), contentLength);
+        snippetIndex.put(contentItem, text);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Stubs.delete(directory);
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        snippetIndex.put(contentItem, text);
+    }
+
+    @Benchmark
+    public List<String> getSnippets() throws IOException {
+        return snippetIndex.getSnippets(contentItem, searchs, 3);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.simple.SimpleGraph;
+import org.apache.clerezza.platform.cris.IndexService;
+import org.apache.clerezza.platform.graphprovider.content.ContentGraphProvider;
+import org.apache.clerezza.rdf.core.LiteralFactory;
+import org.apache.clerezza.rdf.cris.Condition;
+import org.apache.clerezza.rdf.cris.FacetCollector;
+import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+import org.apache.stanbol.enhancer.servicesapi.rdf.Properties;
+import org.apache.stanbol.enhancer.servicesapi.rdf.TechnicalClasses;
+import org.apache.stanbol.entityhub.model.clerezza.RdfValueFactory;
+import org.apache.stanbol.entityhub.servicesapi.model.Entity;
+import org.apache.stanbol.entityhub.servicesapi.model.Representation;
+import org.apache.stanbol.entityhub.servicesapi.site.SiteManager;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Stub implementations of the services the components depend on, so that
+ * the benchmarks run without an OSGi framework or remote sites.
+ *
+ * @author Reto
+ */
+class Stubs {
+
+    private Stubs() {
+    }
+
+    /**
+     * @return a ComponentContext of which only getProperties is functional
+     */
+    static ComponentContext componentContext(Map<String, Object> properties) {
+        final Dictionary<String, Object> dictionary = new Hashtable<String, Object>(properties);
+        return proxy(ComponentContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getProperties")) {
+                    return dictionary;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * @return a SiteManager knowing every entity, with a label as only
+     * property
+     */
+    static SiteManager siteManager() {
+        return proxy(SiteManager.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getEntity")) {
+                    return entity((String) args[0]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * @return a ContentGraphProvider returning the given graph
+     */
+    static ContentGraphProvider contentGraphProvider(final Graph graph) {
+        return new ContentGraphProvider() {
+            @Override
+            public Graph getContentGraph() {
+                return graph;
+            }
+        };
+    }
+
+    /**
+     * @return an activated EntityDescriptionCache using the stub SiteManager
+     * and the given content graph
+     */
+    static EntityDescriptionCache entityDescriptionCache(Graph graph) {
+        final EntityDescriptionCache entityDescriptionCache = new EntityDescriptionCache();
+        inject(entityDescriptionCache, "siteManager", siteManager());
+        inject(entityDescriptionCache, "contentGraphProvider", contentGraphProvider(graph));
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(EntityDescriptionCache.CACHE_SIZE, 100000);
+        entityDescriptionCache.activate(componentContext(properties));
+        return entityDescriptionCache;
+    }
+
+    /**
+     * @return an IndexService returning the specified resources for every
+     * search, without collecting facets
+     */
+    static IndexService indexService(final List<BlankNodeOrIRI> matches) {
+        return new IndexService() {
+            @Override
+            public List<BlankNodeOrIRI> findResources(List<? extends Condition> conditions,
+                    FacetCollector... facetCollectors) {
+                return matches;
+            }
+        };
+    }
+
+    /**
+     * Returns the metadata an enhancement chain produces for a content item
+     * mentioning the specified entities: a text annotation and an entity
+     * annotation per entity.
+     */
+    static Graph enhancementResults(IRI contentItem, IRI[] entities) {
+        final Graph result = new SimpleGraph();
+        final LiteralFactory literalFactory = LiteralFactory.getInstance();
+        for (int i = 0; i < entities.length; i++) {
+            final IRI textAnnotation = new IRI("urn:enhancement-text-" + i);
+            result.add(new TripleImpl(textAnnotation, RDF.type,
+                    TechnicalClasses.ENHANCER_ENHANCEMENT));
+            result.add(new TripleImpl(textAnnotation, RDF.type,
+                    TechnicalClasses.ENHANCER_TEXTANNOTATION));
+            result.add(new TripleImpl(textAnnotation, Properties.ENHANCER_EXTRACTED_FROM,
+                    contentItem));
+            result.add(new TripleImpl(textAnnotation, Properties.ENHANCER_SELECTED_TEXT,
+                    new PlainLiteralImpl("Entity " + i)));
+            final IRI entityAnnotation = new IRI("urn:enhancement-entity-" + i);
+            result.add(new TripleImpl(entityAnnotation, RDF.type,
+                    TechnicalClasses.ENHANCER_ENHANCEMENT));
+            result.add(new TripleImpl(entityAnnotation, RDF.type,
+                    TechnicalClasses.ENHANCER_ENTITYANNOTATION));
+            result.add(new TripleImpl(entityAnnotation, Properties.ENHANCER_EXTRACTED_FROM,
+                    contentItem));
+            result.add(new TripleImpl(entityAnnotation, DC.relation, textAnnotation));
+            result.add(new TripleImpl(entityAnnotation, Properties.ENHANCER_ENTITY_REFERENCE,
+                    entities[i]));
+            result.add(new TripleImpl(entityAnnotation, Properties.ENHANCER_CONFIDENCE,
+                    literalFactory.createTypedLiteral(0.9)));
+        }
+        return result;
+    }
+
+    private static Entity entity(final String id) {
+        final Representation representation = RdfValueFactory.getInstance()
+                .createRepresentation(id);
+        representation.addNaturalText(RDFS.label.getUnicodeString(), "Label of " + id, "en");
+        return proxy(Entity.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getRepresentation")) {
+                    return representation;
+                }
+                if (method.getName().equals("getId")) {
+                    return id;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Sets a field as the component runtime does for references.
+     */
+    static void inject(Object target, String fieldName, Object value) {
+        try {
+            final Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (NoSuchFieldException ex) {
+            throw new RuntimeException(ex);
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     */
+    static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+                new Class<?>[]{type}, handler));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.cris.PropertyHolder;
+import org.apache.clerezza.rdf.cris.VirtualProperty;
+import org.apache.clerezza.rdf.ontologies.SIOC;
+import org.apache.clerezza.rdf.utils.GraphNode;
+import org.apache.stanbol.commons.indexedgraph.IndexedGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost at ingest of computing the values of the substring index for a
+ * content item, depending on the length of its text and the configured
+ * maximum substring length.
+ *
+ * @author Reto
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubstringIndexBenchmark {
+
+    @Param({"1000", "10000"})
+    public int contentLength;
+    @Param({"8", "16"})
+    public int maxLength;
+    private SubstringVirtualProperty property;
+    private GraphNode node;
+
+    @Setup
+    public void setUp() {
+        final List<VirtualProperty> joinedProperties = new ArrayList<VirtualProperty>();
+        joinedProperties.add(new PropertyHolder(SIOC.content));
+        property = new SubstringVirtualProperty(joinedProperties, maxLength);
+        final IndexedGraph graph = new IndexedGraph();
+        final IRI contentItem = new IRI("http://example.org/ecs/content/0");
+        graph.add(new TripleImpl(contentItem, SIOC.content, new PlainLiteralImpl(
+                SyntheticContent.text(new Random(42), contentLength))));
+        node = new GraphNode(contentItem, graph);
+    }
+
+    @Benchmark
+    public List<String> substrings() {
+        return property.value(node);
+    }
+}
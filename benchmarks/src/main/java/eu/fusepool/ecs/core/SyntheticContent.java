@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.ontologies.ECS;
+import java.util.Random;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.DCTERMS;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+import org.apache.clerezza.rdf.ontologies.SIOC;
+import org.apache.stanbol.commons.indexedgraph.IndexedGraph;
+
+/**
+ * A content graph with content items shaped like the ones created by the
+ * metadata generator. The subjects of the content items follow a Zipf
+ * distribution, so a few entities are the subject of most items.
+ *
+ * @author Reto
+ */
+class SyntheticContent {
+
+    private static final String[] WORDS = {"enhanced", "content", "store", "energy",
+        "policy", "european", "research", "patent", "semantic", "linked", "data",
+        "search", "facet", "entity", "document", "analysis", "market", "water"};
+    private final Graph graph = new IndexedGraph();
+    private final IRI[] contentItems;
+    private final IRI[] entities;
+    private final Zipf subjectDistribution;
+
+    /**
+     * @param items the number of content items
+     * @param entityCount the number of distinct entities
+     * @param subjectsPerItem the number of subjects of every content item
+     * @param contentLength the length of the text of every content item
+     */
+    SyntheticContent(int items, int entityCount, int subjectsPerItem, int contentLength,
+            long seed) {
+        final Random random = new Random(seed);
+        subjectDistribution = new Zipf(entityCount, 1.0);
+        entities = new IRI[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            entities[i] = new IRI("http://example.org/entity/" + i);
+            graph.add(new TripleImpl(entities[i], RDF.type, new IRI("http://example.org/Type")));
+            graph.add(new TripleImpl(entities[i], RDFS.label,
+                    new PlainLiteralImpl("Entity " + i)));
+        }
+        contentItems = new IRI[items];
+        for (int i = 0; i < items; i++) {
+            final IRI item = new IRI("http://example.org/ecs/content/" + i);
+            contentItems[i] = item;
+            final String text = text(random, contentLength);
+            graph.add(new TripleImpl(item, RDF.type, ECS.ContentItem));
+            graph.add(new TripleImpl(item, DCTERMS.title, new PlainLiteralImpl("Item " + i)));
+            graph.add(new TripleImpl(item, SIOC.content, new PlainLiteralImpl(text)));
+            graph.add(new TripleImpl(item, ECS.textPreview,
+                    new PlainLiteralImpl(TextPreviews.preview(text))));
+            for (int s = 0; s < subjectsPerItem; s++) {
+                graph.add(new TripleImpl(item, DC.subject,
+                        entities[subjectDistribution.sample(random)]));
+            }
+        }
+    }
+
+    static String text(Random random, int length) {
+        final StringBuilder result = new StringBuilder(length + 16);
+        while (result.length() < length) {
+            result.append(WORDS[random.nextInt(WORDS.length)]);
+            result.append(random.nextInt(12) == 0 ? ". " : " ");
+        }
+        result.setLength(length);
+        return result.toString();
+    }
+
+    Graph getGraph() {
+        return graph;
+    }
+
+    IRI[] getContentItems() {
+        return contentItems;
+    }
+
+    IRI[] getEntities() {
+        return entities;
+    }
+
+    Zipf getSubjectDistribution() {
+        return subjectDistribution;
+    }
+
+    /**
+     * Samples ranks 0..n-1 where the probability of rank k is proportional
+     * to 1/(k+1)^exponent.
+     */
+    static class Zipf {
+
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            final double value = random.nextDouble();
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (cumulative[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
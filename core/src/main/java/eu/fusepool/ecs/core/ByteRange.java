@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+/**
+ * A single range of bytes as requested with an HTTP Range header.
+ *
+ * @author Reto
+ */
+class ByteRange {
+
+    /**
+     * Returned by parse for ranges that cannot be satisfied
+     */
+    static final ByteRange UNSATISFIABLE = new ByteRange(0, -1);
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses the value of a Range header. Only single ranges of bytes are
+     * supported, for any other value null is returned so that the whole
+     * entity is served.
+     *
+     * @param header the value of the Range header
+     * @param length the length of the entity
+     * @return the range, UNSATISFIABLE or null
+     */
+    static ByteRange parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.startsWith("bytes=") || (header.indexOf(',') != -1)) {
+            return null;
+        }
+        final String spec = header.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final String firstString = spec.substring(0, dash).trim();
+            final String lastString = spec.substring(dash + 1).trim();
+            if (firstString.length() == 0) {
+                //suffix range: the last n bytes
+                final long suffixLength = Long.parseLong(lastString);
+                if (suffixLength <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, length - suffixLength), length - 1);
+            }
+            final long first = Long.parseLong(firstString);
+            final long last = lastString.length() == 0 ? length - 1 : Long.parseLong(lastString);
+            if ((lastString.length() > 0) && (last < first)) {
+                return null;
+            }
+            if (first >= length) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(first, Math.min(last, length - 1));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLast() {
+        return last;
+    }
+
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header for this range
+     */
+    String toContentRange(long length) {
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Selects the enhancement chain for a content by its media type and size and
+ * limits the number of concurrent enhancements per chain.
+ *
+ * A mapping has the form <code>type/subtype[,maxBytes]=chain</code> where
+ * type and subtype may be "*". The first mapping matching the media type and
+ * of which the maxBytes (if any) isn't exceeded applies. A limit has the form
+ * <code>chain=permits</code>.
+ *
+ * @author Reto
+ */
+class ChainSelector {
+
+    static final String DEFAULT_CHAIN = "default";
+    private final List<Mapping> mappings = new ArrayList<Mapping>();
+    private final Map<String, Semaphore> limits = new HashMap<String, Semaphore>();
+    private final ConcurrentMap<String, Timing> timings = new ConcurrentHashMap<String, Timing>();
+
+    ChainSelector(String[] mappingStrings, String[] limitStrings) {
+        for (String mappingString : mappingStrings) {
+            final int equals = mappingString.lastIndexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("Invalid chain mapping: " + mappingString);
+            }
+            final String pattern = mappingString.substring(0, equals).trim();
+            final String chain = mappingString.substring(equals + 1).trim();
+            final int comma = pattern.indexOf(',');
+            final MediaType mediaType = MediaType.valueOf(
+                    comma == -1 ? pattern : pattern.substring(0, comma).trim());
+            final long maxBytes = comma == -1 ? Long.MAX_VALUE
+                    : Long.parseLong(pattern.substring(comma + 1).trim());
+            mappings.add(new Mapping(mediaType, maxBytes, chain));
+        }
+        for (String limitString : limitStrings) {
+            final int equals = limitString.lastIndexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("Invalid chain limit: " + limitString);
+            }
+            limits.put(limitString.substring(0, equals).trim(), new Semaphore(
+                    Integer.parseInt(limitString.substring(equals + 1).trim()), true));
+        }
+    }
+
+    /**
+     * @return the name of the chain for content of the specified type and
+     * size
+     */
+    String select(MediaType mediaType, long size) {
+        if (mediaType == null) {
+            return DEFAULT_CHAIN;
+        }
+        for (Mapping mapping : mappings) {
+            if (mapping.mediaType.isCompatible(mediaType) && (size <= mapping.maxBytes)) {
+                return mapping.chain;
+            }
+        }
+        return DEFAULT_CHAIN;
+    }
+
+    /**
+     * Waits until the chain may be used by one more enhancement, every call
+     * must be followed by a call to <code>release</code>.
+     */
+    void acquire(String chain) throws InterruptedException {
+        final Semaphore limit = limits.get(chain);
+        if (limit != null) {
+            limit.acquire();
+        }
+    }
+
+    /**
+     * @return true if the chain may be used by one more enhancement, in
+     * which case the call must be followed by a call to
+     * <code>release</code>
+     */
+    boolean tryAcquire(String chain) {
+        final Semaphore limit = limits.get(chain);
+        return (limit == null) || limit.tryAcquire();
+    }
+
+    void release(String chain) {
+        final Semaphore limit = limits.get(chain);
+        if (limit != null) {
+            limit.release();
+        }
+    }
+
+    /**
+     * Records the duration of an enhancement with a chain.
+     */
+    void record(String chain, long nanos) {
+        Timing timing = timings.get(chain);
+        if (timing == null) {
+            final Timing newTiming = new Timing();
+            timing = timings.putIfAbsent(chain, newTiming);
+            if (timing == null) {
+                timing = newTiming;
+            }
+        }
+        timing.record(nanos);
+    }
+
+    /**
+     * @return the timings of the chains that have been used
+     */
+    Map<String, Timing> getTimings() {
+        return Collections.unmodifiableMap(timings);
+    }
+
+    private static class Mapping {
+
+        final MediaType mediaType;
+        final long maxBytes;
+        final String chain;
+
+        Mapping(MediaType mediaType, long maxBytes, String chain) {
+            this.mediaType = mediaType;
+            this.maxBytes = maxBytes;
+            this.chain = chain;
+        }
+    }
+}
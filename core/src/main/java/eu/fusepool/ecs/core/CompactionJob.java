@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.ontologies.ECS;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.stanbol.enhancer.servicesapi.rdf.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compacts the enhancements graph in the background. For every content item
+ * the enhancements are removed if the content item no longer exists,
+ * otherwise duplicate enhancements left by repeated enhancements are removed
+ * and the retention policy is applied.
+ *
+ * The content items are processed in chunks, the write lock is released and
+ * the job pauses between chunks so that it doesn't block enhancements.
+ *
+ * @author Reto
+ */
+class CompactionJob {
+
+    private static final Logger log = LoggerFactory.getLogger(CompactionJob.class);
+    private static final int CHUNK_SIZE = 50;
+    private final Graph enhancementGraph;
+    private final Graph contentGraph;
+    private final EnhancementRetention retention;
+    private final long pauseMillis;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private volatile int total = -1;
+    private volatile boolean running = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param pauseMillis the time to pause between chunks
+     */
+    CompactionJob(Graph enhancementGraph, Graph contentGraph,
+            EnhancementRetention retention, long pauseMillis) {
+        this.enhancementGraph = enhancementGraph;
+        this.contentGraph = contentGraph;
+        this.retention = retention;
+        this.pauseMillis = pauseMillis;
+    }
+
+    void start() {
+        running = true;
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (InterruptedException ex) {
+                    log.warn("Compaction interrupted");
+                } catch (RuntimeException ex) {
+                    log.error("Compaction failed", ex);
+                } finally {
+                    running = false;
+                    log.info("Compaction " + (cancelled ? "stopped" : "finished") + ", reclaimed "
+                            + reclaimed.get() + " triples");
+                }
+            }
+        }, "ecs-compaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return a human readable description of the progress
+     */
+    String getProgress() {
+        final StringBuilder result = new StringBuilder();
+        result.append(running ? (cancelled ? "stopping" : "running") : "finished").append('\n');
+        result.append("processed: ").append(processed.get()).append('/')
+                .append(total == -1 ? "?" : String.valueOf(total)).append('\n');
+        result.append("reclaimed triples: ").append(reclaimed.get()).append('\n');
+        return result.toString();
+    }
+
+    private void compact() throws InterruptedException {
+        final List<IRI> contentItems = getContentItems();
+        total = contentItems.size();
+        for (int start = 0; (start < contentItems.size()) && !cancelled; start += CHUNK_SIZE) {
+            final List<IRI> chunk = contentItems.subList(start,
+                    Math.min(start + CHUNK_SIZE, contentItems.size()));
+            final Set<IRI> existing = getExisting(chunk);
+            final Lock l = enhancementGraph.getLock().writeLock();
+            l.lock();
+            try {
+                for (IRI contentItem : chunk) {
+                    if (existing.contains(contentItem)) {
+                        reclaimed.addAndGet(EnhancementRetention.removeDuplicates(enhancementGraph,
+                                EnhancementRetention.getEnhancements(enhancementGraph, contentItem)));
+                        reclaimed.addAndGet(retention.apply(enhancementGraph,
+                                EnhancementRetention.getEnhancements(enhancementGraph, contentItem)));
+                    } else {
+                        reclaimed.addAndGet(EnhancementRetention.removeEnhancements(
+                                enhancementGraph, contentItem));
+                    }
+                    processed.incrementAndGet();
+                }
+            } finally {
+                l.unlock();
+            }
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private List<IRI> getContentItems() {
+        final Set<IRI> result = new HashSet<IRI>();
+        final Lock l = enhancementGraph.getLock().readLock();
+        l.lock();
+        try {
+            final Iterator<Triple> triples = enhancementGraph.filter(null,
+                    Properties.ENHANCER_EXTRACTED_FROM, null);
+            while (triples.hasNext()) {
+                final RDFTerm contentItem = triples.next().getObject();
+                if (contentItem instanceof IRI) {
+                    result.add((IRI) contentItem);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+        return new ArrayList<IRI>(result);
+    }
+
+    private Set<IRI> getExisting(List<IRI> contentItems) {
+        final Set<IRI> result = new HashSet<IRI>();
+        final Lock l = contentGraph.getLock().readLock();
+        l.lock();
+        try {
+            for (IRI contentItem : contentItems) {
+                if (contentGraph.contains(new TripleImpl(contentItem, RDF.type, ECS.ContentItem))) {
+                    result.add(contentItem);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+        return result;
+    }
+}
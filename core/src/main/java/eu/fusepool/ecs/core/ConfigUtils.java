@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Collection;
+import java.util.Dictionary;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Utilities to read the configuration properties of a component.
+ *
+ * @author Reto
+ */
+final class ConfigUtils {
+
+    private ConfigUtils() {
+    }
+
+    static int getInt(ComponentContext context, String name, int defaultValue) {
+        final Object value = getValue(context, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Value of " + name + " is not an integer: " + value, ex);
+        }
+    }
+
+    static double getDouble(ComponentContext context, String name, double defaultValue) {
+        final Object value = getValue(context, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Value of " + name + " is not a number: " + value, ex);
+        }
+    }
+
+    static boolean getBoolean(ComponentContext context, String name, boolean defaultValue) {
+        final Object value = getValue(context, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return Boolean.parseBoolean(value.toString().trim());
+    }
+
+    static String getString(ComponentContext context, String name, String defaultValue) {
+        final Object value = getValue(context, name);
+        return value == null ? defaultValue : value.toString().trim();
+    }
+
+    /**
+     * Returns the values of a multi-valued property, single values are
+     * returned as array with one element.
+     */
+    static String[] getStringArray(ComponentContext context, String name, String[] defaultValue) {
+        final Object value = getValue(context, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof String[]) {
+            return (String[]) value;
+        }
+        if (value instanceof Collection) {
+            final Collection<?> values = (Collection<?>) value;
+            final String[] result = new String[values.size()];
+            int i = 0;
+            for (Object element : values) {
+                result[i++] = element.toString();
+            }
+            return result;
+        }
+        return new String[]{value.toString()};
+    }
+
+    private static Object getValue(ComponentContext context, String name) {
+        final Dictionary properties = context.getProperties();
+        if (properties == null) {
+            return null;
+        }
+        return properties.get(name);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Keeps the bodies of contents as files named by the MD5 digest of their
+ * bytes, so that they can be received and served without holding them in
+ * memory.
+ *
+ * @author Reto
+ */
+class ContentBodyStore {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{32}");
+    private final File directory;
+
+    ContentBodyStore(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Could not create " + directory);
+        }
+    }
+
+    /**
+     * Copies the stream to a temporary file computing its digest on the fly.
+     * The result has to be either stored or discarded.
+     */
+    SpooledBody spool(InputStream in) throws IOException {
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        final File file = File.createTempFile("upload", ".tmp", directory);
+        final OutputStream out = new FileOutputStream(file);
+        long length = 0;
+        boolean complete = false;
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md5.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                length += read;
+            }
+            complete = true;
+        } finally {
+            out.close();
+            if (!complete) {
+                file.delete();
+            }
+        }
+        return new SpooledBody(file, new String(Hex.encodeHex(md5.digest())), length);
+    }
+
+    /**
+     * Moves a spooled body to its permanent location.
+     */
+    void store(SpooledBody body) {
+        final File target = getTarget(body.getDigest());
+        if (target.exists() || !body.file.renameTo(target)) {
+            body.discard();
+        }
+    }
+
+    /**
+     * Stores a body that is already in memory.
+     */
+    void store(String digest, byte[] data) throws IOException {
+        final File target = getTarget(digest);
+        if (target.exists()) {
+            return;
+        }
+        final File file = File.createTempFile("copy", ".tmp", directory);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!file.renameTo(target)) {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return the file with the body with the specified digest or null if
+     * there is no such body in the store
+     */
+    File getFile(String digest) {
+        if (!isDigest(digest)) {
+            return null;
+        }
+        final File file = getTarget(digest);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Deletes the body with the specified digest if it is in the store.
+     */
+    void remove(String digest) {
+        if (isDigest(digest)) {
+            getTarget(digest).delete();
+        }
+    }
+
+    /**
+     * @return true if the string has the form of a hex encoded MD5 digest
+     */
+    static boolean isDigest(String string) {
+        return DIGEST_PATTERN.matcher(string).matches();
+    }
+
+    /**
+     * Writes the specified range of a file to an output stream, the
+     * transfer is delegated to the file channel so that the bytes need not
+     * be copied to the heap.
+     */
+    static void transfer(File file, long offset, long length, OutputStream out) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final WritableByteChannel target = Channels.newChannel(out);
+            long position = offset;
+            final long end = offset + length;
+            while (position < end) {
+                final long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    private File getTarget(String digest) {
+        return new File(directory, digest);
+    }
+
+    /**
+     * A body in a temporary file.
+     */
+    static class SpooledBody {
+
+        private final File file;
+        private final String digest;
+        private final long length;
+
+        private SpooledBody(File file, String digest, long length) {
+            this.file = file;
+            this.digest = digest;
+            this.length = length;
+        }
+
+        /**
+         * @return the hex encoded MD5 digest of the body
+         */
+        String getDigest() {
+            return digest;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * Reads the body into an array of the exact size of the body.
+         */
+        byte[] getBytes() throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Body too large: " + length);
+            }
+            final byte[] result = new byte[(int) length];
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final FileChannel channel = in.getChannel();
+                final ByteBuffer buffer = ByteBuffer.wrap(result);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) == -1) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return result;
+        }
+
+        void discard() {
+            file.delete();
+        }
+    }
+}
@@ -2,39 +2,62 @@ package eu.fusepool.ecs.core;
 
 import eu.fusepool.ecs.core.intercept.Interceptor;
 import eu.fusepool.ecs.ontologies.ECS;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.FileNameMap;
+import java.net.URLConnection;
 import java.security.AccessController;
 import java.security.AllPermission;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import javax.xml.bind.DatatypeConverter;
 import org.apache.clerezza.commons.rdf.BlankNode;
 import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
 import org.apache.clerezza.commons.rdf.Graph;
 import org.apache.clerezza.commons.rdf.IRI;
-import org.apache.clerezza.commons.rdf.Language;
-import org.apache.clerezza.commons.rdf.Literal;
 import org.apache.clerezza.commons.rdf.RDFTerm;
 import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.WatchableGraph;
+import org.apache.clerezza.commons.rdf.event.FilterTriple;
+import org.apache.clerezza.commons.rdf.event.GraphEvent;
+import org.apache.clerezza.commons.rdf.event.GraphListener;
+import org.apache.clerezza.commons.rdf.event.RemoveEvent;
 import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
 import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
 import org.apache.clerezza.commons.rdf.impl.utils.simple.SimpleGraph;
@@ -47,20 +70,17 @@ import org.apache.clerezza.rdf.core.LiteralFactory;
 import org.apache.clerezza.rdf.core.access.TcManager;
 import org.apache.clerezza.rdf.cris.Condition;
 import org.apache.clerezza.rdf.cris.CountFacetCollector;
-import org.apache.clerezza.rdf.cris.FacetCollector;
 import org.apache.clerezza.rdf.cris.JoinVirtualProperty;
 import org.apache.clerezza.rdf.cris.PathVirtualProperty;
 import org.apache.clerezza.rdf.cris.PropertyHolder;
 import org.apache.clerezza.rdf.cris.VirtualProperty;
 import org.apache.clerezza.rdf.cris.WildcardCondition;
 import org.apache.clerezza.rdf.ontologies.DC;
-import org.apache.clerezza.rdf.ontologies.DCTERMS;
 import org.apache.clerezza.rdf.ontologies.DISCOBITS;
 import org.apache.clerezza.rdf.ontologies.RDF;
 import org.apache.clerezza.rdf.ontologies.RDFS;
 import org.apache.clerezza.rdf.ontologies.SIOC;
 import org.apache.clerezza.rdf.utils.GraphNode;
-import org.apache.clerezza.rdf.utils.RdfList;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -73,10 +93,6 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.stanbol.commons.indexedgraph.IndexedGraph;
 import org.apache.stanbol.commons.security.UserUtil;
 import org.apache.stanbol.commons.web.viewable.RdfViewable;
-import org.apache.stanbol.entityhub.model.clerezza.RdfValueFactory;
-import org.apache.stanbol.entityhub.servicesapi.model.Entity;
-import org.apache.stanbol.entityhub.servicesapi.model.Representation;
-import org.apache.stanbol.entityhub.servicesapi.site.SiteManager;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -99,8 +115,46 @@ public class ContentStoreImpl implements ContentStore {
      */
     private static final Logger log = LoggerFactory.getLogger(ContentStoreImpl.class);
     public static final int PREVIEW_LENGTH = 200;
+    /**
+     * The maximum number of query dependent snippets per content item
+     */
+    private final static int MAX_SNIPPETS = 3;
     final static IRI MEDIA_TITLE = new IRI("http://www.w3.org/ns/ma-ont#title");
     private final static String CONTENT_PREFIX = "content/";
+    private final static String STATUS_SUFFIX = ".status";
+    private final static int TOO_MANY_REQUESTS = 429;
+    private final static int PARTIAL_CONTENT = 206;
+    private final static int REQUEST_ENTITY_TOO_LARGE = 413;
+    private final static int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    private final static int INTERCEPTOR_NOTIFICATION_THREADS = 2;
+    private final static int INTERCEPTOR_NOTIFICATION_QUEUE_CAPACITY = 1000;
+    private final static String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    /**
+     * With facetMode=approximate the facet counts are estimated from this
+     * many of the matching content items
+     */
+    private final static int FACET_SAMPLE_SIZE = 5000;
+    /**
+     * If greater than 0 the content and subject labels are additionally
+     * indexed so that search strings up to this length can be found with a
+     * prefix lookup rather than a scan of all indexed terms. Changing this 
+     * value requires re-indexing.
+     */
+    @Property(intValue = 0)
+    public static final String SUBSTRING_INDEX_LENGTH = "substringIndexLength";
+    /**
+     * The maximum number of query results that are cached, 0 disables the
+     * cache
+     */
+    @Property(intValue = 1000)
+    public static final String QUERY_CACHE_SIZE = "queryCacheSize";
+    /**
+     * The maximum size in bytes of a posted content or of a document in a
+     * posted zip archive. As DiscobitsHandler and the enhancer take the
+     * content as byte array it has to fit in memory.
+     */
+    @Property(intValue = 52428800)
+    public static final String MAX_CONTENT_SIZE = "maxContentSize";
     /**
      * This service allows accessing and creating persistent triple collections
      */
@@ -114,17 +168,74 @@ public class ContentStoreImpl implements ContentStore {
     private GraphNodeProvider graphNodeProvider;
     @Reference
     private ContentGraphProvider contentGraphProvider;
+    @Reference
+    private StanbolEnhancerMetadataGenerator metadataGenerator;
     /**
-     * This service allows to get entities from configures sites
+     * Provides the descriptions of entities from the configured sites
      */
     @Reference
-    private SiteManager siteManager;
+    private EntityDescriptionCache entityDescriptionCache;
     private LiteralFactory literalFactory = LiteralFactory.getInstance();
-    private Collection<Interceptor> interceptors =
-            Collections.synchronizedCollection(new HashSet<Interceptor>());
+    private ContentBodyStore contentBodyStore;
+    private int maxContentSize;
+    /**
+     * Deletes the body file of a content when its discobit is removed
+     */
+    private final GraphListener bodyRemover = new GraphListener() {
+        public void graphChanged(List<GraphEvent> events) {
+            for (GraphEvent event : events) {
+                final BlankNodeOrIRI subject = event.getTriple().getSubject();
+                if ((event instanceof RemoveEvent) && (subject instanceof IRI)) {
+                    final String uri = ((IRI) subject).getUnicodeString();
+                    if (uri.contains(CONTENT_PREFIX)) {
+                        contentBodyStore.remove(uri.substring(uri.lastIndexOf('/') + 1));
+                    }
+                }
+            }
+        }
+    };
+    private WatchableGraph watchedGraph;
+    /**
+     * null if the cache is disabled
+     */
+    private volatile QueryResultCache queryResultCache;
+    private File reindexCursorFile;
+    /**
+     * The current or last re-indexing job, guarded by this
+     */
+    private ReindexJob reindexJob;
+    /**
+     * The thread re-creating the whole index, guarded by this
+     */
+    private Thread indexRecreation;
+    private final InterceptorChain interceptorChain = new InterceptorChain(
+            INTERCEPTOR_NOTIFICATION_THREADS, INTERCEPTOR_NOTIFICATION_QUEUE_CAPACITY);
+    /**
+     * The durations of the stages of getContentStoreView by stage
+     */
+    private final Map<String, Timing> queryStageTimings = new LinkedHashMap<String, Timing>();
+    private final Timing queryTime = Timing.create(queryStageTimings, "total");
+    private final Timing interceptTime = Timing.create(queryStageTimings, "intercept");
+    private final Timing indexTime = Timing.create(queryStageTimings, "index");
+    private final Timing facetsTime = Timing.create(queryStageTimings, "facets");
+    private final Timing descriptionsTime = Timing.create(queryStageTimings, "descriptions");
+    private final Timing snippetsTime = Timing.create(queryStageTimings, "snippets");
+    /**
+     * The durations of the stages of postContent by stage
+     */
+    private final Map<String, Timing> postStageTimings = new LinkedHashMap<String, Timing>();
+    private final Timing postTime = Timing.create(postStageTimings, "total");
+    private final Timing spoolTime = Timing.create(postStageTimings, "spool");
+    private final Timing storeTime = Timing.create(postStageTimings, "store");
     
     final private VirtualProperty subjectLabel, labelsAndContent;
+    /**
+     * null unless substring indexing is enabled
+     */
+    private SubstringVirtualProperty labelsAndContentSubstrings;
     private final PropertyHolder contentProperty = new PropertyHolder(SIOC.content);
+    private final PropertyHolder typeProperty = new PropertyHolder(RDF.type);
+    private final List<FacetDefinition> facetDefinitions = new ArrayList<FacetDefinition>();
 
     public ContentStoreImpl() {
         final List<IRI> subjectLabelPath = new ArrayList<IRI>();
@@ -135,23 +246,75 @@ public class ContentStoreImpl implements ContentStore {
         joinedProperties.add(contentProperty);
         joinedProperties.add(subjectLabel);
         labelsAndContent = new JoinVirtualProperty(joinedProperties,false);
+        facetDefinitions.add(new FacetDefinition(DC.subject, new PropertyHolder(DC.subject),
+                ECS.facet));
+        facetDefinitions.add(new FacetDefinition(RDF.type, typeProperty, ECS.typeFacet,
+                ECS.ContentItem, DISCOBITS.InfoDiscoBit));
     }
 
     @Activate
     protected void activate(ComponentContext context) {
         log.info("Enhanced Content Store being activated");
+        contentBodyStore = new ContentBodyStore(
+                context.getBundleContext().getDataFile("bodies"));
+        final Graph contentGraph = contentGraphProvider.getContentGraph();
+        if (contentGraph instanceof WatchableGraph) {
+            watchedGraph = (WatchableGraph) contentGraph;
+            watchedGraph.addGraphListener(bodyRemover,
+                    new FilterTriple(null, DISCOBITS.mediaType, null));
+        } else {
+            log.warn("Content graph cannot be watched, body files of removed "
+                    + "contents are only deleted when requested");
+        }
         final List<VirtualProperty> indexProperties = new ArrayList<VirtualProperty>();
         //indexProperties.add(contentProperty);
         //indexProperties.add(subjectLabel);
         indexProperties.add(labelsAndContent);
+        final int substringIndexLength = ConfigUtils.getInt(context, SUBSTRING_INDEX_LENGTH, 0);
+        if (substringIndexLength > 0) {
+            final List<VirtualProperty> joinedProperties = new ArrayList<VirtualProperty>();
+            joinedProperties.add(contentProperty);
+            joinedProperties.add(subjectLabel);
+            labelsAndContentSubstrings = new SubstringVirtualProperty(joinedProperties,
+                    substringIndexLength);
+            indexProperties.add(labelsAndContentSubstrings);
+        } else {
+            labelsAndContentSubstrings = null;
+        }
         indexProperties.add(new PropertyHolder(DC.subject, true));
         indexProperties.add(new PropertyHolder(RDF.type, true));
         indexService.addDefinitionVirtual(ECS.ContentItem, indexProperties);
+        final int queryCacheSize = ConfigUtils.getInt(context, QUERY_CACHE_SIZE, 1000);
+        queryResultCache = queryCacheSize > 0 ? new QueryResultCache(queryCacheSize) : null;
+        maxContentSize = ConfigUtils.getInt(context, MAX_CONTENT_SIZE, 52428800);
+        reindexCursorFile = context.getBundleContext().getDataFile("reindex.cursor");
+        final Thread filterIndexBuilder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    metadataGenerator.buildFilterIndex(
+                            contentGraphProvider.getContentGraph());
+                } catch (RuntimeException ex) {
+                    log.error("Building the filter index failed", ex);
+                }
+            }
+        }, "ecs-filter-index");
+        filterIndexBuilder.setDaemon(true);
+        filterIndexBuilder.start();
     }
 
     @Deactivate
     protected void deactivate(ComponentContext context) {
         log.info("The Enhanced COntent Store");
+        if (watchedGraph != null) {
+            watchedGraph.removeGraphListener(bodyRemover);
+            watchedGraph = null;
+        }
+        interceptorChain.shutdown();
+        synchronized (this) {
+            if (reindexJob != null) {
+                reindexJob.cancel();
+            }
+        }
     }
 
     /**
@@ -165,13 +328,16 @@ public class ContentStoreImpl implements ContentStore {
             @QueryParam("search") final List<String> searchs,
             @QueryParam("items") final Integer items,
             @QueryParam("offset") final @DefaultValue("0") Integer offset,
-            @QueryParam("maxFacets") final @DefaultValue("10") Integer maxFacets) throws Exception {
+            @QueryParam("maxFacets") final @DefaultValue("10") Integer maxFacets,
+            @QueryParam("cursor") final String cursor,
+            @QueryParam("facetMode") final String facetMode) throws Exception {
         //here we can still access the user name
         final String userName = UserUtil.getCurrentUserName();
         try {
             return AccessController.doPrivileged(new PrivilegedExceptionAction<RdfViewable>() {
                 public RdfViewable run() throws Exception {
-                    return serviceEntry(uriInfo, subjects, types, searchs, items, offset, maxFacets);
+                    return serviceEntry(uriInfo, subjects, types, searchs, items, offset, maxFacets,
+                            cursor, facetMode);
                 }
             });
         } catch (PrivilegedActionException e) {
@@ -186,30 +352,132 @@ public class ContentStoreImpl implements ContentStore {
             @QueryParam("search") final List<String> searchs,
             @QueryParam("items") Integer items,
             @QueryParam("offset") @DefaultValue("0") Integer offset,
-            @QueryParam("maxFacets") @DefaultValue("10") Integer maxFacets) throws Exception {
+            @QueryParam("maxFacets") @DefaultValue("10") Integer maxFacets,
+            @QueryParam("cursor") String cursor,
+            @QueryParam("facetMode") String facetMode) throws Exception {
         //this maks sure we are nt invoked with a trailing slash which would affect
         //relative resolution of links (e.g. css)
         TrailingSlash.enforcePresent(uriInfo);
-        String viewUriString = uriInfo.getRequestUri().toString();//getAbsolutePath().toString();
+        final IRI contentStoreViewUri = getContentStoreViewUri(uriInfo, items == null);
         if (items == null) {
-            if (viewUriString.indexOf('?') > 0) {
-                viewUriString += "&";
-            } else {
-                viewUriString += "?";
-            }
-            viewUriString += "items=10";
             items = 10;
         }
-        final IRI contentStoreViewUri = new IRI(viewUriString);
         //This is the URI without query params
         final IRI contentStoreUri = new IRI(uriInfo.getAbsolutePath().toString());
-        GraphNode node = getContentStoreView(contentStoreUri, contentStoreViewUri,
+        GraphNode node = getContentStoreView(new Query(contentStoreUri, contentStoreViewUri,
                 subjects, types, searchs, items,
-                offset, maxFacets, false);
+                offset, maxFacets, false, cursor, isApproximateFacets(facetMode)));
         //What we return is the GraphNode we created with a template path
         return new RdfViewable("ContentStoreView", node, ContentStoreImpl.class);
     }
 
+    /**
+     * Returns the ContentStoreView in an RDF format, writing its triples as
+     * they are produced rather than building the result graph first.
+     */
+    @GET
+    @Produces({TripleStreamWriter.N_TRIPLES, TripleStreamWriter.TURTLE,
+        TripleStreamWriter.JSON_LD})
+    public Response streamServiceEntry(@Context final UriInfo uriInfo,
+            @Context final Request request,
+            @QueryParam("subject") final List<IRI> subjects,
+            @QueryParam("type") final List<IRI> types,
+            @QueryParam("search") final List<String> searchs,
+            @QueryParam("items") final Integer items,
+            @QueryParam("offset") @DefaultValue("0") final Integer offset,
+            @QueryParam("maxFacets") @DefaultValue("10") final Integer maxFacets,
+            @QueryParam("withContent") @DefaultValue("false") final boolean withContent,
+            @QueryParam("cursor") final String cursor,
+            @QueryParam("facetMode") final String facetMode) {
+        TrailingSlash.enforcePresent(uriInfo);
+        final Variant variant = request.selectVariant(Variant.mediaTypes(
+                MediaType.valueOf(TripleStreamWriter.N_TRIPLES),
+                MediaType.valueOf(TripleStreamWriter.TURTLE),
+                MediaType.valueOf(TripleStreamWriter.JSON_LD)).add().build());
+        final String mediaType = variant == null ? TripleStreamWriter.TURTLE
+                : variant.getMediaType().getType() + "/" + variant.getMediaType().getSubtype();
+        final Query query = new Query(new IRI(uriInfo.getAbsolutePath().toString()),
+                getContentStoreViewUri(uriInfo, items == null),
+                subjects, types, searchs, items == null ? 10 : items, offset, maxFacets,
+                withContent, cursor, isApproximateFacets(facetMode));
+        //once the view is being written errors can no longer be reported
+        checkCursor(cursor);
+        return Response.ok(new StreamingOutput() {
+            public void write(final OutputStream out) throws IOException {
+                try {
+                    AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+                        public Object run() throws IOException {
+                            final TripleStreamWriter writer = TripleStreamWriter.create(
+                                    mediaType, out);
+                            writeContentStoreView(query, writer);
+                            writer.finish();
+                            return null;
+                        }
+                    });
+                } catch (PrivilegedActionException ex) {
+                    throw (IOException) ex.getException();
+                }
+            }
+        }, mediaType).build();
+    }
+
+    /**
+     * @return the request URI, with the default number of items added if
+     * addItems is true
+     */
+    private static IRI getContentStoreViewUri(UriInfo uriInfo, boolean addItems) {
+        String viewUriString = uriInfo.getRequestUri().toString();//getAbsolutePath().toString();
+        if (addItems) {
+            if (viewUriString.indexOf('?') > 0) {
+                viewUriString += "&";
+            } else {
+                viewUriString += "?";
+            }
+            viewUriString += "items=10";
+        }
+        return new IRI(viewUriString);
+    }
+
+    /**
+     * Writes the view for the query. The triples are written as they are
+     * produced and such views are not cached. Cached views are written from
+     * the cache, and if interceptors are bound, which may modify the whole
+     * result, the view is completed and intercepted before it is written.
+     */
+    private void writeContentStoreView(Query query, TripleStreamWriter writer)
+            throws IOException {
+        if (!interceptorChain.isEmpty()) {
+            writer.writeAll(getContentStoreView(query).getGraph());
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final QueryResultCache cache = queryResultCache;
+            final GraphNode cached = cache == null ? null
+                    : cache.get(query, metadataGenerator.getGeneration());
+            if (cached != null) {
+                writer.writeAll(cached.getGraph());
+                return;
+            }
+            createContentStoreView(new StreamingGraph(writer),
+                    query.getContentStoreUri(),
+                    query.getContentStoreViewUri(),
+                    query.getSubjects(),
+                    query.getTypes(),
+                    query.getSearchs(),
+                    query.getItems(),
+                    query.getOffset(),
+                    query.getMaxFacets(),
+                    query.isWithContent(),
+                    query.getCursor(),
+                    query.isApproximateFacets());
+        } catch (StreamingGraph.WriteException ex) {
+            throw ex.getCause();
+        } finally {
+            queryTime.record(System.nanoTime() - start);
+        }
+    }
+
     /**
      * Returns a GraphNode of type ContentStoreView.
      *
@@ -253,8 +521,18 @@ public class ContentStoreImpl implements ContentStore {
 
     @Override
     public GraphNode getContentStoreView(final Query query) {
+        final long start = System.nanoTime();
+        try {
+            return getContentStoreView(query, start);
+        } finally {
+            queryTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private GraphNode getContentStoreView(final Query query, final long start) {
         final Query interceptedQuery = interceptQuery(query);
-        final GraphNode result = createContentStoreView(interceptedQuery.getContentStoreUri(),
+        long interceptNanos = System.nanoTime() - start;
+        final Query effectiveQuery = new Query(interceptedQuery.getContentStoreUri(),
                 query.getContentStoreViewUri(),
                 query.getSubjects(),
                 query.getTypes(),
@@ -262,12 +540,72 @@ public class ContentStoreImpl implements ContentStore {
                 query.getItems(),
                 query.getOffset(),
                 query.getMaxFacets(),
-                query.isWithContent());
-        return interceptResult(interceptedQuery, result);
+                query.isWithContent(),
+                query.getCursor(),
+                query.isApproximateFacets());
+        final QueryResultCache cache = queryResultCache;
+        //read before computing the view, so that a concurrent change leaves
+        //a stale entry rather than a wrong one
+        final long generation = metadataGenerator.getGeneration();
+        GraphNode result = cache == null ? null : cache.get(effectiveQuery, generation);
+        if (result == null) {
+            final DescriptionBatch descriptions = new DescriptionBatch(entityDescriptionCache);
+            result = createContentStoreView(new IndexedGraph(), descriptions,
+                    effectiveQuery.getContentStoreUri(),
+                    effectiveQuery.getContentStoreViewUri(),
+                    effectiveQuery.getSubjects(),
+                    effectiveQuery.getTypes(),
+                    effectiveQuery.getSearchs(),
+                    effectiveQuery.getItems(),
+                    effectiveQuery.getOffset(),
+                    effectiveQuery.getMaxFacets(),
+                    effectiveQuery.isWithContent(),
+                    effectiveQuery.getCursor(),
+                    effectiveQuery.isApproximateFacets());
+            //views lacking the labels of some entities are computed again
+            if ((cache != null) && descriptions.isComplete()) {
+                cache.put(effectiveQuery, generation, result);
+            }
+        }
+        final long interceptStart = System.nanoTime();
+        try {
+            return interceptResult(interceptedQuery, result);
+        } finally {
+            interceptNanos += System.nanoTime() - interceptStart;
+            interceptTime.record(interceptNanos);
+        }
+    }
 
+    /**
+     * Creates the view adding its triples to the specified graph. The
+     * triples are only added, so that the graph may write them out
+     * directly.
+     */
+    GraphNode createContentStoreView(final Graph resultGraph,
+            final IRI contentStoreUri,
+            final IRI contentStoreViewUri,
+            final Collection<IRI> subjects,
+            final Collection<IRI> types,
+            final Collection<String> searchs,
+            Integer items,
+            Integer offset,
+            Integer maxFacets,
+            boolean withContent,
+            String cursorString,
+            boolean approximateFacets) {
+        return createContentStoreView(resultGraph,
+                new DescriptionBatch(entityDescriptionCache), contentStoreUri,
+                contentStoreViewUri, subjects, types, searchs, items, offset, maxFacets,
+                withContent, cursorString, approximateFacets);
     }
 
-    private GraphNode createContentStoreView(final IRI contentStoreUri,
+    /**
+     * Creates the view, the descriptions of all resources are read with the
+     * specified batch.
+     */
+    private GraphNode createContentStoreView(final Graph resultGraph,
+            final DescriptionBatch descriptions,
+            final IRI contentStoreUri,
             final IRI contentStoreViewUri,
             final Collection<IRI> subjects,
             final Collection<IRI> types,
@@ -275,22 +613,24 @@ public class ContentStoreImpl implements ContentStore {
             Integer items,
             Integer offset,
             Integer maxFacets,
-            boolean withContent) {
-        //the in memory graph to which the triples for the response are added
-        final Graph resultGraph = new IndexedGraph();
+            boolean withContent,
+            String cursorString,
+            boolean approximateFacets) {
+        final Cursor cursor = parseCursor(cursorString);
         //This GraphNode represents the service within our result graph
         final GraphNode node = new GraphNode(contentStoreViewUri, resultGraph);
         node.addProperty(RDF.type, ECS.ContentStoreView);
         node.addProperty(ECS.store, contentStoreUri);
         node.addProperty(RDFS.comment, new PlainLiteralImpl("An enhanced content store"));
+        //the descriptions of all resources are read together at the end
         final List<Condition> conditions = new ArrayList<Condition>();
         for (IRI subject : subjects) {
-            addResourceDescription(subject, resultGraph);
+            descriptions.addEntity(subject);
             node.addProperty(ECS.subject, subject);
             conditions.add(new WildcardCondition(new PropertyHolder(DC.subject), subject.getUnicodeString()));
         }
         for (IRI type : types) {
-            addResourceDescription(type, resultGraph);
+            descriptions.addEntity(type);
             node.addProperty(ECS.type, type);
             conditions.add(new WildcardCondition(new PropertyHolder(RDF.type), type.getUnicodeString()));
         }
@@ -298,95 +638,485 @@ public class ContentStoreImpl implements ContentStore {
             node.addPropertyValue(ECS.search, search);
             //conditions.add(new WildcardCondition(contentProperty, "*" + search.toLowerCase() + "*"));
             //conditions.add(new WildcardCondition(subjectLabel, "*" + search.toLowerCase() + "*"));
-            conditions.add(new WildcardCondition(labelsAndContent, "*" + search.toLowerCase() + "*"));
+            conditions.add(createSearchCondition(search));
         }
         if (conditions.isEmpty()) {
             conditions.add(new WildcardCondition(contentProperty, "*"));
         }
-        final Set<VirtualProperty> facetProperties = new HashSet<VirtualProperty>();
-        facetProperties.add((VirtualProperty) new PropertyHolder(DC.subject));
-        facetProperties.add((VirtualProperty) new PropertyHolder(RDF.type));
-
-        final FacetCollector facetCollector = new CountFacetCollector(
-                facetProperties);
-        final List<BlankNodeOrIRI> matchingNodes = indexService.findResources(conditions, facetCollector);
-        node.addPropertyValue(ECS.contentsCount, matchingNodes.size());
-        {
-            //facets
-            final Set<Map.Entry<String, Integer>> facets = facetCollector.getFacets(new PropertyHolder(DC.subject));
-            final List<Map.Entry<String, Integer>> faceList = new ArrayList<Map.Entry<String, Integer>>(facets);
-            Collections.sort(faceList, new Comparator<Entry<String, Integer>>() {
-                public int compare(Entry<String, Integer> o1, Entry<String, Integer> o2) {
-                    return o2.getValue().compareTo(o1.getValue());
+        long stageStart = System.nanoTime();
+        final FilterIndex filterIndex = metadataGenerator.getFilterIndex();
+        RoaringBitmap filtered = filterWithBitmaps(subjects, types, searchs);
+        if ((filtered == null) && filterIndex.isReady()) {
+            //the matches are put in the order of the filter index, so that
+            //the order doesn't depend on which index answered the query; all
+            //matches are needed for the count and the facets anyway
+            filtered = filterIndex.getIds(indexService.findResources(conditions));
+        }
+        final List<BlankNodeOrIRI> page;
+        //the position after this page if there are more items
+        Cursor next = null;
+        boolean facetCountApproximate = false;
+        if (filtered != null) {
+            //one more item is retrieved to know if there is a next page
+            final int[] ids;
+            final int limit;
+            if (cursor != null) {
+                //offset cursors are from before the filter index was ready
+                if (!cursor.isAfterId() || (cursor.getEpoch() != filterIndex.getEpoch())) {
+                    throw expiredCursor();
                 }
-            });
-            for (int i = 0; i < Math.min(maxFacets, faceList.size()); i++) {
-                Entry<String, Integer> entry = faceList.get(i);
-                final BlankNode facetResource = new BlankNode();
-                final GraphNode facetNode = new GraphNode(facetResource, resultGraph);
-                node.addProperty(ECS.facet, facetResource);
-                final IRI facetValue = new IRI(entry.getKey());
-                final Integer facetCount = entry.getValue();
-                facetNode.addProperty(ECS.facetValue, facetValue);
-                addResourceDescription(facetValue, resultGraph);
-                facetNode.addPropertyValue(ECS.facetCount, facetCount);
-            }
-        }
-        {
-            //TODO remove code duplication
-            //type-facets
-            final Set<Map.Entry<String, Integer>> facets = facetCollector.getFacets(new PropertyHolder(RDF.type));
-            final List<Map.Entry<String, Integer>> faceList = new ArrayList<Map.Entry<String, Integer>>(facets);
-            Collections.sort(faceList, new Comparator<Entry<String, Integer>>() {
-                public int compare(Entry<String, Integer> o1, Entry<String, Integer> o2) {
-                    return o2.getValue().compareTo(o1.getValue());
+                limit = cursor.getLimit();
+                ids = filtered.toArrayAfter(cursor.getPosition(), limit, items + 1);
+            } else {
+                limit = filterIndex.getIdCount();
+                ids = filtered.toArray(offset, offset + items + 1);
+            }
+            if ((items > 0) && (ids.length > items)) {
+                next = Cursor.after(filterIndex.getEpoch(), ids[items - 1], limit);
+            }
+            page = new ArrayList<BlankNodeOrIRI>(filterIndex.getContentItems(
+                    Arrays.copyOf(ids, Math.min(items, ids.length))));
+            indexTime.record(System.nanoTime() - stageStart);
+            stageStart = System.nanoTime();
+            node.addPropertyValue(ECS.contentsCount, filtered.getCardinality());
+            //the facets are the same as on the first page
+            for (FacetDefinition facetDefinition
+                    : cursor == null ? facetDefinitions : Collections.<FacetDefinition>emptyList()) {
+                final TopFacets topFacets = new TopFacets(maxFacets);
+                if (approximateFacets) {
+                    if (filterIndex.estimateFacets(facetDefinition.predicate, filtered,
+                            facetDefinition.ignoredValues, topFacets, FACET_SAMPLE_SIZE)) {
+                        facetCountApproximate = true;
+                    }
+                } else {
+                    filterIndex.countFacets(facetDefinition.predicate, filtered,
+                            facetDefinition.ignoredValues, topFacets);
                 }
-            });
-            int maxFacetsAdapted = maxFacets;
-            for (int i = 0; i < Math.min(maxFacetsAdapted, faceList.size()); i++) {
-                Entry<String, Integer> entry = faceList.get(i);
-                final BlankNode facetResource = new BlankNode();
-                final GraphNode facetNode = new GraphNode(facetResource, resultGraph);
-                node.addProperty(ECS.typeFacet, facetResource);
-                final IRI facetValue = new IRI(entry.getKey());
-                if (facetValue.equals(ECS.ContentItem) || facetValue.equals(DISCOBITS.InfoDiscoBit)) {
-                    maxFacetsAdapted++;
-                    continue;
+                addFacets(node, topFacets, facetDefinition, descriptions);
+            }
+        } else {
+            if ((cursor != null) && cursor.isAfterId()) {
+                //the filter index the cursor refers to is no longer available
+                throw expiredCursor();
+            }
+            final int start = cursor == null ? offset : cursor.getPosition();
+            //CRIS has no search that only counts, and a ranged search only
+            //collects the facets of the hits it returns, so the count and the
+            //facets require the unranged search returning all matches
+            final List<BlankNodeOrIRI> matchingNodes;
+            final CountFacetCollector facetCollector;
+            if (cursor == null) {
+                final Set<VirtualProperty> facetProperties = new HashSet<VirtualProperty>();
+                for (FacetDefinition facetDefinition : facetDefinitions) {
+                    facetProperties.add(facetDefinition.property);
+                }
+                facetCollector = new CountFacetCollector(facetProperties);
+                matchingNodes = indexService.findResources(conditions, facetCollector);
+            } else {
+                //pages reached with a cursor have no facets
+                facetCollector = null;
+                matchingNodes = indexService.findResources(conditions);
+            }
+            indexTime.record(System.nanoTime() - stageStart);
+            stageStart = System.nanoTime();
+            final int contentsCount = matchingNodes.size();
+            node.addPropertyValue(ECS.contentsCount, contentsCount);
+            if ((items > 0) && (contentsCount > start + items)) {
+                next = Cursor.offset(start + items);
+            }
+            for (FacetDefinition facetDefinition
+                    : cursor == null ? facetDefinitions : Collections.<FacetDefinition>emptyList()) {
+                final TopFacets topFacets = new TopFacets(maxFacets);
+                for (Map.Entry<String, Integer> entry
+                        : facetCollector.getFacets(facetDefinition.property)) {
+                    if (!facetDefinition.ignoredValues.contains(entry.getKey())) {
+                        topFacets.offer(entry.getKey(), entry.getValue());
+                    }
                 }
-                final Integer facetCount = entry.getValue();
-                facetNode.addProperty(ECS.facetValue, facetValue);
-                addResourceDescription(facetValue, resultGraph);
-                facetNode.addPropertyValue(ECS.facetCount, facetCount);
+                addFacets(node, topFacets, facetDefinition, descriptions);
             }
+            page = matchingNodes.subList(Math.min(start, contentsCount),
+                    Math.min(start + items, contentsCount));
         }
-        final BlankNodeOrIRI matchingContentsList = new BlankNode();
-        if (matchingNodes.size() > 0) {
-            node.addProperty(ECS.contents, matchingContentsList);
-            final RdfList matchingContents = new RdfList(matchingContentsList, resultGraph);
-            matchingContents.addAll(matchingNodes.subList(
-                    Math.min(offset, matchingNodes.size()),
-                    Math.min(offset + items, matchingNodes.size())));
-            for (RDFTerm content : matchingContents) {
-                GraphNode cgContent = graphNodeProvider.getLocal((IRI) content);
-                addRelevantDescription(cgContent, resultGraph, withContent);
-
+        facetsTime.record(System.nanoTime() - stageStart);
+        if (facetCountApproximate) {
+            node.addPropertyValue(ECS.facetCountApproximate, true);
+        }
+        if (next != null) {
+            node.addProperty(ECS.next, new IRI(UriBuilder.fromUri(
+                    contentStoreViewUri.getUnicodeString()).replaceQueryParam("offset")
+                    .replaceQueryParam("cursor", next.toString()).build().toString()));
+        }
+        if (page.size() > 0) {
+            node.addProperty(ECS.contents, addList(resultGraph, page));
+            for (BlankNodeOrIRI content : page) {
+                descriptions.addContentItem((IRI) content);
+            }
+        }
+        if (!searchs.isEmpty()) {
+            stageStart = System.nanoTime();
+            for (BlankNodeOrIRI content : page) {
+                setSnippets((IRI) content, searchs, descriptions);
             }
+            snippetsTime.record(System.nanoTime() - stageStart);
         }
+        stageStart = System.nanoTime();
+        descriptions.fetch(contentGraphProvider.getContentGraph(), resultGraph, withContent);
+        descriptionsTime.record(System.nanoTime() - stageStart);
         return node;
     }
 
+    /**
+     * @return the parsed cursor or null if cursorString is null
+     * @throws WebApplicationException with status 400 if the cursor is
+     * invalid
+     */
+    private static Cursor parseCursor(String cursorString) {
+        if (cursorString == null) {
+            return null;
+        }
+        try {
+            return Cursor.parse(cursorString);
+        } catch (IllegalArgumentException ex) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(ex.getMessage()).build());
+        }
+    }
+
+    /**
+     * @return true if facetMode is "approximate", false if it is null or
+     * "exact"
+     * @throws WebApplicationException with status 400 for other values
+     */
+    private static boolean isApproximateFacets(String facetMode) {
+        if ((facetMode == null) || facetMode.equals("exact")) {
+            return false;
+        }
+        if (facetMode.equals("approximate")) {
+            return true;
+        }
+        throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("facetMode must be exact or approximate").build());
+    }
+
+    /**
+     * Checks that the cursor is valid and refers to the current filter
+     * index, or to the order of the full-text index while it isn't ready.
+     *
+     * @throws WebApplicationException with status 400 if the cursor is
+     * invalid and 410 if it has expired
+     */
+    private void checkCursor(String cursorString) {
+        final Cursor cursor = parseCursor(cursorString);
+        if (cursor == null) {
+            return;
+        }
+        final FilterIndex filterIndex = metadataGenerator.getFilterIndex();
+        final boolean expired;
+        if (filterIndex.isReady()) {
+            //offset cursors are from before the filter index was ready
+            expired = !cursor.isAfterId() || (cursor.getEpoch() != filterIndex.getEpoch());
+        } else {
+            expired = cursor.isAfterId();
+        }
+        if (expired) {
+            throw expiredCursor();
+        }
+    }
+
+    private static WebApplicationException expiredCursor() {
+        return new WebApplicationException(Response.status(Response.Status.GONE)
+                .entity("The cursor has expired, start again from the first page").build());
+    }
+
+    /**
+     * Creates the condition for a search string. If possible this is a prefix
+     * lookup on the substring index rather than a search with a leading
+     * wildcard.
+     */
+    private Condition createSearchCondition(String search) {
+        final String pattern = search.toLowerCase();
+        if ((labelsAndContentSubstrings != null)
+                && (pattern.length() <= labelsAndContentSubstrings.getMaxLength())
+                && (pattern.indexOf('*') == -1) && (pattern.indexOf('?') == -1)) {
+            return new WildcardCondition(labelsAndContentSubstrings, pattern + "*");
+        }
+        return new WildcardCondition(labelsAndContent, "*" + pattern + "*");
+    }
+
+    /**
+     * Returns the content items matching the subjects, types and search
+     * strings using the bitmaps of the filter index. The search strings are
+     * matched by the full-text index, its matches are intersected with the
+     * content items having the subjects and types. Which index answers a
+     * query only affects performance, once the filter index is ready the
+     * matches of the full-text index are ordered by it as well.
+     *
+     * @return the ids of the matching content items or null if the query
+     * cannot be answered with the filter index
+     */
+    private RoaringBitmap filterWithBitmaps(Collection<IRI> subjects, Collection<IRI> types,
+            Collection<String> searchs) {
+        final FilterIndex filterIndex = metadataGenerator.getFilterIndex();
+        if (!filterIndex.isReady()) {
+            return null;
+        }
+        if (subjects.isEmpty() && types.isEmpty()) {
+            return searchs.isEmpty() ? filterIndex.getAll() : null;
+        }
+        final Map<IRI, Collection<IRI>> values = new HashMap<IRI, Collection<IRI>>();
+        values.put(DC.subject, subjects);
+        values.put(RDF.type, types);
+        final RoaringBitmap candidates = filterIndex.filter(values);
+        if (searchs.isEmpty() || (candidates.getCardinality() == 0)) {
+            return candidates;
+        }
+        final List<Condition> searchConditions = new ArrayList<Condition>(searchs.size());
+        for (String search : searchs) {
+            searchConditions.add(createSearchCondition(search));
+        }
+        return candidates.and(filterIndex.getIds(indexService.findResources(searchConditions)));
+    }
+
+    /**
+     * Adds the facets with the highest counts, the descriptions of the
+     * facet values are added to the batch.
+     */
+    private void addFacets(GraphNode node, TopFacets topFacets,
+            FacetDefinition facetDefinition, DescriptionBatch descriptions) {
+        topFacets.finish();
+        final Graph resultGraph = node.getGraph();
+        for (int i = 0; i < topFacets.size(); i++) {
+            final BlankNode facetResource = new BlankNode();
+            final GraphNode facetNode = new GraphNode(facetResource, resultGraph);
+            node.addProperty(facetDefinition.viewProperty, facetResource);
+            final IRI facetValue = new IRI(topFacets.getValue(i));
+            facetNode.addProperty(ECS.facetValue, facetValue);
+            descriptions.addEntity(facetValue);
+            facetNode.addPropertyValue(ECS.facetCount, topFacets.getCount(i));
+        }
+    }
+
+    /**
+     * Stores the posted content. Unless async is true the response is only 
+     * sent after the content has been enhanced. Otherwise the response has
+     * status 202 and the content is enhanced in the background, the state of
+     * the enhancement is available at the URI given in the Location header. If
+     * too many asynchronously posted contents are waiting to be enhanced
+     * the request is rejected with status 429. Content that has been posted
+     * and enhanced before is not enhanced again unless reenhance is true.
+     * Content larger than the configured maximum size is rejected with
+     * status 413.
+     */
+    @POST
+    public Response postContent(@Context final UriInfo uriInfo, final InputStream body,
+            @HeaderParam("Content-Type") MediaType contentType,
+            @QueryParam("async") @DefaultValue("false") boolean async,
+            @QueryParam("reenhance") @DefaultValue("false") boolean reenhance) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return postContent(uriInfo, body, contentType, async, reenhance, start);
+        } finally {
+            postTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private Response postContent(UriInfo uriInfo, InputStream body, MediaType contentType,
+            boolean async, boolean reenhance, long start) throws IOException {
+        //the body is spooled to disk, computing the digest on the fly
+        final ContentBodyStore.SpooledBody spooledBody = contentBodyStore.spool(body);
+        spoolTime.record(System.nanoTime() - start);
+        try {
+            if (spooledBody.getLength() > maxContentSize) {
+                return Response.status(REQUEST_ENTITY_TOO_LARGE)
+                        .entity("Content larger than " + maxContentSize + " bytes").build();
+            }
+            final String digest = spooledBody.getDigest();
+            String resourcePath = uriInfo.getAbsolutePath().toString();
+            if (!resourcePath.endsWith("/")) {
+                resourcePath += '/';
+            }
+            resourcePath += CONTENT_PREFIX;
+            final IRI contentUri = new IRI(resourcePath + digest);
+            if (!reenhance && isEnhanced(contentUri)) {
+                //the same bytes have been posted and enhanced before
+                contentBodyStore.store(spooledBody);
+                return Response.ok("Content already stored with uri " + contentUri).build();
+            }
+            //DiscobitsHandler and the enhancer need the bytes in memory
+            final byte[] data = spooledBody.getBytes();
+            if (!async) {
+                final long storeStart = System.nanoTime();
+                try {
+                    //this includes the enhancement
+                    discobitsHandler.put(contentUri, contentType, data);
+                } finally {
+                    storeTime.record(System.nanoTime() - storeStart);
+                }
+                contentBodyStore.store(spooledBody);
+                return Response.ok("Posted " + data.length + " bytes, with uri " 
+                        + contentUri + ": " + contentType).build();
+            }
+            final long storeStart = System.nanoTime();
+            final boolean enqueued = metadataGenerator.putAndEnqueue(discobitsHandler,
+                    contentUri, contentType, data);
+            storeTime.record(System.nanoTime() - storeStart);
+            if (!enqueued) {
+                return Response.status(TOO_MANY_REQUESTS)
+                        .entity("Too many contents waiting to be enhanced, retry later")
+                        .header("Retry-After", "10").build();
+            }
+            contentBodyStore.store(spooledBody);
+            final String statusUri = contentUri.getUnicodeString() + STATUS_SUFFIX;
+            return Response.status(Response.Status.ACCEPTED)
+                    .entity("Posted " + data.length + " bytes, with uri " + contentUri
+                    + ": " + contentType + ", enhancement status: " + statusUri)
+                    .header("Location", statusUri)
+                    .header("Link", "<" + contentUri.getUnicodeString() + ">; rel=describes")
+                    .build();
+        } finally {
+            //has no effect if the body has been stored
+            spooledBody.discard();
+        }
+    }
+
+    /**
+     * Stores and enhances all the documents contained in a posted zip 
+     * archive. The documents are processed in batches of the specified 
+     * size, the documents of a batch are enhanced concurrently and their 
+     * metadata is added with a single write per graph. Documents that have
+     * been enhanced before are skipped unless reenhance is true, documents
+     * larger than the maximum content size are skipped as well. A batch is
+     * put early once its documents reach the maximum content size in total,
+     * so that at most about twice that size is held in memory.
+     */
     @POST
-    public String postContent(@Context final UriInfo uriInfo, final byte[] data,
-            @HeaderParam("Content-Type") MediaType contentType) {
-        final String digest = DigestUtils.md5Hex(data);
-        String resourcePath = uriInfo.getAbsolutePath().toString();
+    @Path("batch")
+    @Consumes("application/zip")
+    @Produces("text/plain")
+    public String postBatch(@Context final UriInfo uriInfo, final InputStream data,
+            @QueryParam("batchSize") @DefaultValue("50") int batchSize,
+            @QueryParam("reenhance") @DefaultValue("false") boolean reenhance) throws IOException {
+        String resourcePath = uriInfo.getBaseUriBuilder().path(ContentStoreImpl.class)
+                .build().toString();
         if (!resourcePath.endsWith("/")) {
             resourcePath += '/';
         }
         resourcePath += CONTENT_PREFIX;
-        final IRI contentUri = new IRI(resourcePath + digest);
-        discobitsHandler.put(contentUri, contentType, data);
-        return "Posted " + data.length + " bytes, with uri " + contentUri + ": " + contentType;
+        final FileNameMap fileNameMap = URLConnection.getFileNameMap();
+        final StringBuilder report = new StringBuilder();
+        final ZipInputStream zipIn = new ZipInputStream(data);
+        final List<BatchItem> batch = new ArrayList<BatchItem>(batchSize);
+        int count = 0;
+        long batchBytes = 0;
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            final byte[] content = readFully(zipIn, maxContentSize);
+            if (content == null) {
+                report.append(entry.getName()).append(": larger than ")
+                        .append(maxContentSize).append(" bytes, skipped\n");
+                continue;
+            }
+            final String mediaTypeString = fileNameMap.getContentTypeFor(entry.getName());
+            final MediaType mediaType = mediaTypeString == null
+                    ? MediaType.APPLICATION_OCTET_STREAM_TYPE
+                    : MediaType.valueOf(mediaTypeString);
+            final IRI contentUri = new IRI(resourcePath + DigestUtils.md5Hex(content));
+            if (!reenhance && isEnhanced(contentUri)) {
+                report.append(entry.getName()).append(": ").append(contentUri)
+                        .append(" already stored\n");
+                continue;
+            }
+            batch.add(new BatchItem(contentUri, mediaType, content));
+            report.append(entry.getName()).append(": ").append(contentUri)
+                    .append(' ').append(mediaType).append('\n');
+            count++;
+            batchBytes += content.length;
+            if ((batch.size() >= batchSize) || (batchBytes >= maxContentSize)) {
+                putBatch(batch, report);
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            putBatch(batch, report);
+        }
+        return "Posted " + count + " documents\n" + report;
+    }
+
+    private void putBatch(final List<BatchItem> batch, final StringBuilder report) {
+        final Map<IRI, RuntimeException> errors = metadataGenerator.enhanceBatch(
+                new Runnable() {
+            public void run() {
+                for (BatchItem item : batch) {
+                    discobitsHandler.put(item.contentUri, item.mediaType, item.data);
+                }
+            }
+        });
+        for (Map.Entry<IRI, RuntimeException> error : errors.entrySet()) {
+            report.append("Enhancing ").append(error.getKey()).append(" failed: ")
+                    .append(error.getValue().getMessage()).append('\n');
+        }
+    }
+
+    /**
+     * @return the bytes of the stream or null if there are more than
+     * maxLength, the stream is read to the end in either case
+     */
+    private static byte[] readFully(InputStream in, int maxLength) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        boolean tooLarge = false;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (!tooLarge && (out.size() + read > maxLength)) {
+                tooLarge = true;
+                out.reset();
+            }
+            if (!tooLarge) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return tooLarge ? null : out.toByteArray();
+    }
+
+    /**
+     * The state of the enhancement of an asynchronously posted content, this
+     * is one of "queued", "running", "failed" or "enhanced".
+     */
+    @GET
+    @Path(CONTENT_PREFIX + "{hash: .*}" + STATUS_SUFFIX)
+    @Produces("text/plain")
+    public Response getEnhancementStatus(@Context final UriInfo uriInfo) {
+        final String resourcePath = uriInfo.getAbsolutePath().toString();
+        final IRI contentUri = new IRI(resourcePath.substring(0, 
+                resourcePath.length() - STATUS_SUFFIX.length()));
+        final EnhancementQueue.State state = metadataGenerator.getEnhancementState(contentUri);
+        if (state != null) {
+            return Response.ok(state.toString().toLowerCase()).build();
+        }
+        if (isEnhanced(contentUri)) {
+            return Response.ok("enhanced").build();
+        }
+        return Response.status(Response.Status.NOT_FOUND).build();
+    }
+
+    /**
+     * @return true if the content graph has the content item, which is only
+     * the case once it has been enhanced
+     */
+    private boolean isEnhanced(IRI contentUri) {
+        final Graph cg = contentGraphProvider.getContentGraph();
+        final Lock l = cg.getLock().readLock();
+        l.lock();
+        try {
+            return cg.contains(new TripleImpl(contentUri, RDF.type, ECS.ContentItem));
+        } finally {
+            l.unlock();
+        }
     }
 
     //an alternative to retrieveing via entityhub
@@ -407,24 +1137,281 @@ public class ContentStoreImpl implements ContentStore {
      public Graph test() {
      return tcManager.getGraph(Constants.CONTENT_GRAPH_URI);
      } */
+    /**
+     * Starts re-indexing the content items in the background, unless a
+     * re-indexing is already running.
+     * 
+     * @param since if present only the items modified since then (as
+     * xsd:dateTime) are re-indexed
+     * @param resume if true the items before the point where the last
+     * incomplete re-indexing stopped are skipped
+     * @param full if true the whole index is re-created instead, this
+     * removes the entries of deleted items and is needed after changing the
+     * indexed properties, but queries see partial results until it completes
+     * @return the progress of the re-indexing
+     */
     @GET
     @Path("reindex")
-    public String reIndex() {
+    @Produces("text/plain")
+    public synchronized String reIndex(@QueryParam("since") String since,
+            @QueryParam("resume") boolean resume,
+            @QueryParam("full") boolean full) throws IOException {
         AccessController.checkPermission(new AllPermission());
-        indexService.reCreateIndex();
-        return "re-indexed";
+        if (isReIndexing()) {
+            return getReIndexStatus();
+        }
+        if (full) {
+            indexRecreation = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        indexService.reCreateIndex();
+                        log.info("Re-creating the index completed");
+                    } catch (RuntimeException ex) {
+                        log.error("Re-creating the index failed", ex);
+                    }
+                }
+            }, "ecs-recreate-index");
+            indexRecreation.setDaemon(true);
+            indexRecreation.start();
+        } else {
+            Date sinceDate = null;
+            if (since != null) {
+                try {
+                    sinceDate = DatatypeConverter.parseDateTime(since).getTime();
+                } catch (IllegalArgumentException ex) {
+                    throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                            .entity("Invalid date: " + since).build());
+                }
+            }
+            reindexJob = new ReindexJob(contentGraphProvider.getContentGraph(),
+                    metadataGenerator.getFilterIndex(), reindexCursorFile, resume, sinceDate);
+            reindexJob.start();
+        }
+        return getReIndexStatus();
+    }
+
+    private synchronized boolean isReIndexing() {
+        return ((reindexJob != null) && reindexJob.isRunning())
+                || ((indexRecreation != null) && indexRecreation.isAlive());
     }
 
+    @GET
+    @Path("reindex/status")
+    @Produces("text/plain")
+    public synchronized String getReIndexStatus() {
+        AccessController.checkPermission(new AllPermission());
+        if ((indexRecreation != null) && indexRecreation.isAlive()) {
+            return "re-creating the whole index\n";
+        }
+        if (reindexJob == null) {
+            return "no re-indexing started";
+        }
+        return reindexJob.getProgress();
+    }
+
+    /**
+     * Stops the running re-indexing, it can later be resumed.
+     */
+    @POST
+    @Path("reindex/cancel")
+    @Produces("text/plain")
+    public synchronized String cancelReIndex() {
+        AccessController.checkPermission(new AllPermission());
+        if (reindexJob == null) {
+            return "no re-indexing started";
+        }
+        reindexJob.cancel();
+        return reindexJob.getProgress();
+    }
+
+    /**
+     * Starts compacting the enhancements graph in the background, unless a
+     * compaction is already running.
+     * 
+     * @return the progress of the compaction
+     */
+    @GET
+    @Path("compact")
+    @Produces("text/plain")
+    public String compact() {
+        AccessController.checkPermission(new AllPermission());
+        return metadataGenerator.startCompaction(contentGraphProvider.getContentGraph());
+    }
+
+    @GET
+    @Path("compact/status")
+    @Produces("text/plain")
+    public String getCompactionStatus() {
+        AccessController.checkPermission(new AllPermission());
+        final String progress = metadataGenerator.getCompactionProgress();
+        return progress == null ? "no compaction started" : progress;
+    }
+
+    /**
+     * Returns the latency histograms of the stages of queries and ingest and
+     * the statistics of the caches in the Prometheus text format.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(PrometheusFormat.MEDIA_TYPE)
+    public String getMetrics() {
+        AccessController.checkPermission(new AllPermission());
+        final PrometheusFormat metrics = new PrometheusFormat();
+        metrics.histograms("ecs_query_stage_seconds",
+                "Duration of the stages of answering a query", "stage", queryStageTimings);
+        metrics.histograms("ecs_post_stage_seconds",
+                "Duration of the stages of posting a content", "stage", postStageTimings);
+        metrics.histograms("ecs_enhancement_stage_seconds",
+                "Duration of the stages of enhancing a content", "stage",
+                metadataGenerator.getStageTimings());
+        metrics.histograms("ecs_enhancement_chain_seconds",
+                "Duration of enhancements by chain", "chain",
+                metadataGenerator.getChainTimings());
+        metrics.gauge("ecs_enhancement_pending",
+                "Contents queued or being enhanced asynchronously",
+                metadataGenerator.getPendingEnhancementCount());
+        metrics.histogram("ecs_entity_lookup_seconds",
+                "Duration of entity lookups with the SiteManager",
+                entityDescriptionCache.getLookupTiming());
+        metrics.counter("ecs_entity_lookup_timeouts_total",
+                "Entity lookups left out of a result as they didn't complete in time",
+                entityDescriptionCache.getLookupTimeoutCount());
+        metrics.counter("ecs_entity_lookup_rejections_total",
+                "Entity lookups left out of a result as the lookup queue was full",
+                entityDescriptionCache.getLookupRejectionCount());
+        metrics.counter("ecs_entity_lookup_failures_total",
+                "Entity lookups left out of a result as they failed",
+                entityDescriptionCache.getLookupFailureCount());
+        metrics.counter("ecs_entity_cache_hits_total", "Entity description cache hits",
+                entityDescriptionCache.getHitCount());
+        metrics.counter("ecs_entity_cache_misses_total", "Entity description cache misses",
+                entityDescriptionCache.getMissCount());
+        metrics.counter("ecs_entity_cache_evictions_total",
+                "Entity description cache evictions", entityDescriptionCache.getEvictionCount());
+        metrics.gauge("ecs_entity_cache_size", "Entities with a cached description",
+                entityDescriptionCache.getSize());
+        final QueryResultCache cache = queryResultCache;
+        if (cache != null) {
+            metrics.counter("ecs_query_cache_hits_total", "Query result cache hits",
+                    cache.getHitCount());
+            metrics.counter("ecs_query_cache_misses_total", "Query result cache misses",
+                    cache.getMissCount());
+            metrics.counter("ecs_query_cache_evictions_total", "Query result cache evictions",
+                    cache.getEvictionCount());
+            metrics.gauge("ecs_query_cache_size", "Cached query results", cache.getSize());
+        }
+        metrics.counter("ecs_description_lock_acquisitions_total",
+                "Read locks acquired on the content graph for describing results",
+                DescriptionBatch.getLockAcquisitions());
+        final Map<String, Timing> queryInterceptorTimings = new LinkedHashMap<String, Timing>();
+        final Map<String, Timing> resultInterceptorTimings = new LinkedHashMap<String, Timing>();
+        final Map<String, Timing> notificationTimings = new LinkedHashMap<String, Timing>();
+        for (InterceptorChain.RankedInterceptor interceptor : interceptorChain.getInterceptors()) {
+            final String name = interceptor.interceptor.getClass().getName()
+                    + "#" + interceptor.serviceId;
+            queryInterceptorTimings.put(name, interceptor.queryTime);
+            resultInterceptorTimings.put(name, interceptor.resultTime);
+            notificationTimings.put(name, interceptor.notificationTime);
+        }
+        metrics.histograms("ecs_interceptor_query_seconds",
+                "Duration of intercepting queries by interceptor", "interceptor",
+                queryInterceptorTimings);
+        metrics.histograms("ecs_interceptor_result_seconds",
+                "Duration of intercepting results by interceptor", "interceptor",
+                resultInterceptorTimings);
+        metrics.histograms("ecs_interceptor_notification_seconds",
+                "Duration of delivering notifications by interceptor", "interceptor",
+                notificationTimings);
+        metrics.counter("ecs_interceptor_dropped_notifications_total",
+                "Notifications dropped because the notification queue was full",
+                interceptorChain.getDroppedNotificationCount());
+        return metrics.toString();
+    }
+
+    /**
+     * Returns the content. As the name of the content is the digest of its
+     * bytes it never changes, so this supports conditional requests with
+     * strong ETags, allows caching forever and serves ranges of the content.
+     */
     @GET
     @Path(CONTENT_PREFIX + "{hash: .*}")
-    public Response getContent(@Context final UriInfo uriInfo) {
+    public Response getContent(@Context final UriInfo uriInfo,
+            @Context final Request request,
+            @PathParam("hash") final String hash,
+            @HeaderParam("Range") final String range,
+            @HeaderParam("If-Range") final String ifRange) {
         final String resourcePath = uriInfo.getAbsolutePath().toString();
         final IRI contentUri = new IRI(resourcePath);
-        final byte[] data = discobitsHandler.getData(contentUri);
         final MediaType mediaType = discobitsHandler.getMediaType(contentUri);
-        Response.ResponseBuilder responseBuilder =
-                Response.ok(data, mediaType)
+        if (mediaType == null) {
+            //the content has been removed, its body file too if it is left
+            contentBodyStore.remove(hash);
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        final File bodyFile = contentBodyStore.getFile(hash);
+        final EntityTag entityTag = ContentBodyStore.isDigest(hash)
+                ? new EntityTag(hash) : null;
+        if (entityTag != null) {
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified.tag(entityTag)
+                        .header("Cache-Control", IMMUTABLE_CACHE_CONTROL).build();
+            }
+        }
+        final byte[] data;
+        final long length;
+        if (bodyFile != null) {
+            data = null;
+            length = bodyFile.length();
+        } else {
+            //stored before bodies were kept as files
+            data = discobitsHandler.getData(contentUri);
+            if (data == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            if (DigestUtils.md5Hex(data).equals(hash)) {
+                try {
+                    contentBodyStore.store(hash, data);
+                } catch (IOException ex) {
+                    log.warn("Could not add " + contentUri + " to body store", ex);
+                }
+            }
+            length = data.length;
+        }
+        ByteRange byteRange = null;
+        if ((range != null) && ((ifRange == null) 
+                || ((entityTag != null) && ifRange.trim().equals(entityTag.toString())))) {
+            byteRange = ByteRange.parse(range, length);
+        }
+        if (byteRange == ByteRange.UNSATISFIABLE) {
+            return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", "bytes */" + length).build();
+        }
+        final long first = byteRange == null ? 0 : byteRange.getFirst();
+        final long count = byteRange == null ? length : byteRange.getLength();
+        final StreamingOutput entity = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                if (bodyFile != null) {
+                    ContentBodyStore.transfer(bodyFile, first, count, out);
+                } else {
+                    out.write(data, (int) first, (int) count);
+                }
+            }
+        };
+        final Response.ResponseBuilder responseBuilder;
+        if (byteRange == null) {
+            responseBuilder = Response.ok(entity, mediaType);
+        } else {
+            responseBuilder = Response.status(PARTIAL_CONTENT).entity(entity).type(mediaType)
+                    .header("Content-Range", byteRange.toContentRange(length));
+        }
+        responseBuilder.header("Content-Length", count)
+                .header("Accept-Ranges", "bytes")
                 .header("Link", "<" + resourcePath + ".meta>; rel=meta");
+        if (entityTag != null) {
+            responseBuilder.tag(entityTag)
+                    .header("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+        }
         return responseBuilder.build();
     }
 
@@ -454,116 +1441,107 @@ public class ContentStoreImpl implements ContentStore {
      *
      */
     private void addResourceDescription(IRI iri, Graph mGraph) {
-        final Entity entity = siteManager.getEntity(iri.getUnicodeString());
-        if (entity != null) {
-            final RdfValueFactory valueFactory = new RdfValueFactory(mGraph);
-            final Representation representation = entity.getRepresentation();
-            if (representation != null) {
-                valueFactory.toRdfRepresentation(representation);
-            }
-        }
+        mGraph.addAll(entityDescriptionCache.getRepresentation(iri));
         //Also add selected properties from content graph
-        //Note that we have to be selective or we would add all the documents the
-        //entity is a subject of.
-        Graph cg = contentGraphProvider.getContentGraph();
-        Lock l = cg.getLock().readLock();
-        l.lock();
-        try {
-            Iterator<Triple> allOutgoing = cg.filter(iri, null, null);
-            while (allOutgoing.hasNext()) {
-                Triple t = allOutgoing.next();
-                if (t.getPredicate().equals(RDF.type)) {
-                    mGraph.add(t);
-                    continue;
-                }
-                if (t.getObject() instanceof Literal) {
-                    mGraph.add(t);
-                }
-            }
-        } finally {
-            l.unlock();
-        }
+        mGraph.addAll(entityDescriptionCache.getLocalDescription(iri,
+                contentGraphProvider.getContentGraph()));
     }
 
-    private void addRelevantDescription(GraphNode cgContent, Graph resultGraph, boolean withContent) {
-        Lock l = cgContent.readLock();
-        l.lock();
-        try {
-            Iterator<Literal> valueIter = cgContent.getLiterals(SIOC.content);
-            //if (!withContent) {
-            while (valueIter.hasNext()) {
-                final Literal valueLit = valueIter.next();
-                final String textualContent = valueLit.getLexicalForm();
-                final String preview = textualContent.substring(
-                        0, Math.min(PREVIEW_LENGTH, textualContent.length()))
-                        .replace('\n', ' ')
-                        .replace("\r", "");
-                Language language = valueLit.getLanguage();
-                resultGraph.add(new TripleImpl((BlankNodeOrIRI) cgContent.getNode(), ECS.textPreview,
-                        new PlainLiteralImpl(preview, language)));
-            }
-            //}
-            copyProperties(cgContent, resultGraph, DCTERMS.title, DCTERMS.abstract_,
-                    RDFS.comment, DC.description, MEDIA_TITLE);
-            if (withContent) {
-                copyProperties(cgContent, resultGraph, SIOC.content);
-            }
-        } finally {
-            l.unlock();
+    /**
+     * Adds an rdf:List of the elements to the graph, without reading from
+     * the graph.
+     *
+     * @return the head of the list
+     */
+    private static BlankNodeOrIRI addList(Graph graph, List<? extends RDFTerm> elements) {
+        final BlankNodeOrIRI head = new BlankNode();
+        BlankNodeOrIRI current = head;
+        for (int i = 0; i < elements.size(); i++) {
+            graph.add(new TripleImpl(current, RDF.first, elements.get(i)));
+            final BlankNodeOrIRI rest = i + 1 < elements.size() ? new BlankNode() : RDF.nil;
+            graph.add(new TripleImpl(current, RDF.rest, rest));
+            current = rest;
         }
+        return head;
     }
 
-    private void copyProperties(GraphNode fromNode, Graph toGraph, IRI... properties) {
-        for (IRI property : properties) {
-            Iterator<RDFTerm> objects = fromNode.getObjects(property);
-            while (objects.hasNext()) {
-                RDFTerm object = objects.next();
-                toGraph.add(new TripleImpl((BlankNodeOrIRI) fromNode.getNode(),
-                        property, object));
-            }
+    /**
+     * Replaces the query independent snippets of a content item with
+     * passages around the matches of the search strings, as stored in the
+     * snippet index so that the text needn't be loaded.
+     */
+    private void setSnippets(IRI contentItem, Collection<String> searchs,
+            DescriptionBatch descriptions) {
+        final List<String> snippets;
+        try {
+            snippets = metadataGenerator.getSnippetIndex().getSnippets(contentItem,
+                    searchs, MAX_SNIPPETS);
+        } catch (IOException ex) {
+            log.warn("Could not get snippets of " + contentItem, ex);
+            return;
+        }
+        if (!snippets.isEmpty()) {
+            descriptions.setSnippets(contentItem, snippets);
         }
     }
 
     private Query interceptQuery(final Query query) {
-        final Iterator<Interceptor> iter = interceptors.iterator();
-        return interceptQuery(iter, query);
+        return interceptorChain.interceptQuery(query);
     }
 
-    private Query interceptQuery(final Iterator<Interceptor> iter,
-            final Query query) {
-        if (iter.hasNext()) {
-            return interceptQuery(iter, iter.next().interceptQuery(query));
-        } else {
-            return query;
-        }
+    private GraphNode interceptResult(final Query query,final GraphNode graphNode) {
+        return interceptorChain.interceptResult(query, graphNode);
     }
 
-    private GraphNode interceptResult(final Query query,final GraphNode graphNode) {
-        final Iterator<Interceptor> iter = interceptors.iterator();
-        return interceptResult(iter, query, graphNode);
+    private void notifyMetaRequest(IRI contentUri) {
+        interceptorChain.notifyMetaRequest(contentUri);
     }
 
-    private GraphNode interceptResult(final Iterator<Interceptor> iter,
-            final Query query, final GraphNode graphNode) {
-        if (iter.hasNext()) {
-            return interceptResult(iter, query, iter.next().interceptResult(query, graphNode));
-        } else {
-            return graphNode;
-        }
+    protected void bindInterceptor(Interceptor interceptor, Map<String, Object> properties) {
+        interceptorChain.add(interceptor, properties);
     }
 
-    private void notifyMetaRequest(IRI contentUri) {
-        //could do tis async
-        for (Interceptor interceptor : interceptors) {
-            interceptor.notifyMetaRequest(contentUri);
-        }
+    protected void unbindInterceptor(Interceptor interceptor) {
+        interceptorChain.remove(interceptor);
     }
 
-    protected void bindInterceptor(Interceptor interceptor) {
-        interceptors.add(interceptor);
+    private static class BatchItem {
+
+        final IRI contentUri;
+        final MediaType mediaType;
+        final byte[] data;
+
+        BatchItem(IRI contentUri, MediaType mediaType, byte[] data) {
+            this.contentUri = contentUri;
+            this.mediaType = mediaType;
+            this.data = data;
+        }
     }
 
-    protected void unbindInterceptor(Interceptor interceptor) {
-        interceptors.remove(interceptor);
+    /**
+     * A property for which facets are computed.
+     */
+    private static class FacetDefinition {
+
+        final IRI predicate;
+        final VirtualProperty property;
+        /**
+         * The property linking the ContentStoreView to the facets
+         */
+        final IRI viewProperty;
+        /**
+         * Values that are never returned as facets
+         */
+        final Set<String> ignoredValues = new HashSet<String>();
+
+        FacetDefinition(IRI predicate, VirtualProperty property, IRI viewProperty,
+                IRI... ignoredValues) {
+            this.predicate = predicate;
+            this.property = property;
+            this.viewProperty = viewProperty;
+            for (IRI ignoredValue : ignoredValues) {
+                this.ignoredValues.add(ignoredValue.getUnicodeString());
+            }
+        }
     }
 }
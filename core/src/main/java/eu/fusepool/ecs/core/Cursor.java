@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.UnsupportedEncodingException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The position after the last content item of a page, to continue with
+ * the next page. For results from the filter index this is the id of the
+ * last content item together with the epoch of the index and the number of
+ * ids assigned when the first page was returned, so that the next page
+ * starts right after that id and items added later are not returned.
+ * Until the filter index is ready it is the offset of the next page in the
+ * order of the full-text index.
+ *
+ * The string form is opaque to clients.
+ *
+ * @author Reto
+ */
+class Cursor {
+
+    private static final String AFTER = "a";
+    private static final String OFFSET = "o";
+    private final boolean afterId;
+    private final long epoch;
+    private final int position;
+    private final int limit;
+
+    private Cursor(boolean afterId, long epoch, int position, int limit) {
+        this.afterId = afterId;
+        this.epoch = epoch;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    /**
+     * @param epoch the epoch of the filter index
+     * @param lastId the id of the last content item of the page
+     * @param limit only ids below this are returned
+     */
+    static Cursor after(long epoch, int lastId, int limit) {
+        return new Cursor(true, epoch, lastId, limit);
+    }
+
+    static Cursor offset(int offset) {
+        return new Cursor(false, 0, offset, 0);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the string is not a valid cursor
+     */
+    static Cursor parse(String string) {
+        try {
+            final String[] parts = new String(Base64.decodeBase64(string), "UTF-8").split(":");
+            if (parts[0].equals(AFTER) && (parts.length == 4)) {
+                final long epoch = Long.parseLong(parts[1]);
+                final int lastId = Integer.parseInt(parts[2]);
+                final int limit = Integer.parseInt(parts[3]);
+                if ((epoch >= 0) && (lastId >= 0) && (limit >= 0)) {
+                    return after(epoch, lastId, limit);
+                }
+            }
+            if (parts[0].equals(OFFSET) && (parts.length == 2)) {
+                final int offset = Integer.parseInt(parts[1]);
+                if (offset >= 0) {
+                    return offset(offset);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            //handled below
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        throw new IllegalArgumentException("Invalid cursor: " + string);
+    }
+
+    boolean isAfterId() {
+        return afterId;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the last id for cursors after an id, the offset otherwise
+     */
+    int getPosition() {
+        return position;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        final String string = afterId ? AFTER + ":" + epoch + ":" + position + ":" + limit
+                : OFFSET + ":" + position;
+        try {
+            return Base64.encodeBase64URLSafeString(string.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
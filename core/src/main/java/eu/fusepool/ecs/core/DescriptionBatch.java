@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.ontologies.ECS;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.DCTERMS;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+import org.apache.clerezza.rdf.ontologies.SIOC;
+
+/**
+ * Collects the content items and entities to be described in a result and
+ * reads their descriptions from the content graph with a single acquisition
+ * of the read lock. Of content items only the copied properties are read,
+ * so that their content is only loaded when it is needed.
+ * The descriptions are added to the result after the lock has been
+ * released, so that a result graph writing to a slow client doesn't block
+ * writers of the content graph.
+ *
+ * @author Reto
+ */
+class DescriptionBatch {
+
+    /**
+     * The properties of content items copied to the result
+     */
+    private static final List<IRI> CONTENT_ITEM_PROPERTIES = Arrays.asList(
+            DCTERMS.title, DCTERMS.abstract_, RDFS.comment, DC.description,
+            ContentStoreImpl.MEDIA_TITLE, ECS.textPreview, ECS.snippet);
+    /**
+     * The number of times the read lock has been acquired by all batches
+     */
+    private static final AtomicLong lockAcquisitions = new AtomicLong();
+    private final EntityDescriptionCache entityDescriptionCache;
+    private final Set<IRI> contentItems = new LinkedHashSet<IRI>();
+    private final Set<IRI> entities = new LinkedHashSet<IRI>();
+    private final Map<IRI, List<String>> snippets = new HashMap<IRI, List<String>>();
+    private boolean complete = true;
+
+    DescriptionBatch(EntityDescriptionCache entityDescriptionCache) {
+        this.entityDescriptionCache = entityDescriptionCache;
+    }
+
+    void addContentItem(IRI contentItem) {
+        contentItems.add(contentItem);
+    }
+
+    void addEntity(IRI entity) {
+        entities.add(entity);
+    }
+
+    /**
+     * Sets the snippets added for a content item instead of the stored
+     * ones.
+     */
+    void setSnippets(IRI contentItem, List<String> contentItemSnippets) {
+        snippets.put(contentItem, contentItemSnippets);
+    }
+
+    /**
+     * Adds the descriptions of all content items and entities to the result
+     * graph.
+     *
+     * @param withContent if true the SIOC.content of the content items is
+     * added
+     * @return false if the representations of some entities are missing
+     * because their lookup was rejected, failed or didn't complete in time
+     */
+    boolean fetch(Graph contentGraph, Graph resultGraph, boolean withContent) {
+        final List<IRI> uncachedEntities = new ArrayList<IRI>();
+        //looked up concurrently, entities not found in time have no labels
+        final Map<IRI, Collection<Triple>> representations =
+                entityDescriptionCache.getRepresentations(entities);
+        complete = representations.size() == entities.size();
+        for (IRI entity : entities) {
+            final Collection<Triple> representation = representations.get(entity);
+            if (representation != null) {
+                resultGraph.addAll(representation);
+            }
+            final Collection<Triple> localDescription =
+                    entityDescriptionCache.getCachedLocalDescription(entity);
+            if (localDescription == null) {
+                uncachedEntities.add(entity);
+            } else {
+                resultGraph.addAll(localDescription);
+            }
+        }
+        if (contentItems.isEmpty() && uncachedEntities.isEmpty()) {
+            return complete;
+        }
+        final List<Triple> descriptions = new ArrayList<Triple>();
+        final Lock l = contentGraph.getLock().readLock();
+        l.lock();
+        lockAcquisitions.incrementAndGet();
+        try {
+            for (IRI contentItem : contentItems) {
+                addContentItemDescription(contentGraph, contentItem, descriptions, withContent);
+            }
+            for (IRI entity : uncachedEntities) {
+                final Collection<Triple> localDescription = Collections.unmodifiableList(
+                        EntityDescriptionCache.readLocalDescription(entity, contentGraph));
+                entityDescriptionCache.putLocalDescription(entity, localDescription);
+                descriptions.addAll(localDescription);
+            }
+        } finally {
+            l.unlock();
+        }
+        resultGraph.addAll(descriptions);
+        return complete;
+    }
+
+    /**
+     * @return false if the last fetch left out representations of entities
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of times the read lock has been acquired for
+     * fetching descriptions
+     */
+    static long getLockAcquisitions() {
+        return lockAcquisitions.get();
+    }
+
+    private void addContentItemDescription(Graph contentGraph, IRI contentItem,
+            List<Triple> target, boolean withContent) {
+        final List<String> contentItemSnippets = snippets.get(contentItem);
+        for (IRI property : CONTENT_ITEM_PROPERTIES) {
+            if (property.equals(ECS.snippet) && (contentItemSnippets != null)) {
+                continue;
+            }
+            addAll(contentGraph.filter(contentItem, property, null), target);
+        }
+        final boolean hasPreview = contentGraph.filter(contentItem, ECS.textPreview, null)
+                .hasNext();
+        if (withContent || !hasPreview) {
+            final Iterator<Triple> contents = contentGraph.filter(contentItem, SIOC.content, null);
+            while (contents.hasNext()) {
+                final Triple triple = contents.next();
+                if (withContent) {
+                    target.add(triple);
+                }
+                if (!hasPreview && (triple.getObject() instanceof Literal)) {
+                    //content enhanced before previews were stored
+                    final Literal content = (Literal) triple.getObject();
+                    target.add(new TripleImpl(contentItem, ECS.textPreview,
+                            new PlainLiteralImpl(TextPreviews.preview(content.getLexicalForm()),
+                            content.getLanguage())));
+                }
+            }
+        }
+        if (contentItemSnippets != null) {
+            for (String snippet : contentItemSnippets) {
+                target.add(new TripleImpl(contentItem, ECS.snippet,
+                        new PlainLiteralImpl(snippet)));
+            }
+        }
+    }
+
+    private static void addAll(Iterator<Triple> triples, List<Triple> target) {
+        while (triples.hasNext()) {
+            target.add(triples.next());
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of workers running enhancement jobs. The number of jobs that
+ * may be running or waiting at any time is limited, clients reserve a slot
+ * with <code>tryReserve</code> before submitting a job and get
+ * <code>false</code> when the queue is full.
+ *
+ * A job is only handed to a worker once it got a permit of its chain, jobs
+ * of a chain at its limit wait in a queue of the chain without taking a
+ * worker, so that they don't hold up the jobs of other chains.
+ *
+ * @author Reto
+ */
+class EnhancementQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(EnhancementQueue.class);
+    /**
+     * The number of failed jobs of which the state is remembered
+     */
+    private static final int MAX_REMEMBERED_FAILURES = 1000;
+
+    enum State {
+
+        QUEUED, RUNNING, FAILED
+    }
+    private final Semaphore slots;
+    private final ExecutorService executor;
+    private final ChainSelector chainSelector;
+    /**
+     * The jobs waiting for a permit by chain, guarded by itself
+     */
+    private final Map<String, Queue<Task>> waiting = new HashMap<String, Queue<Task>>();
+    private final Map<IRI, State> pending = new ConcurrentHashMap<IRI, State>();
+    private final Map<IRI, State> failed = Collections.synchronizedMap(
+            new LinkedHashMap<IRI, State>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<IRI, State> eldest) {
+                    return size() > MAX_REMEMBERED_FAILURES;
+                }
+            });
+
+    /**
+     * @param threads the number of jobs executed concurrently
+     * @param capacity the number of jobs that may wait for a worker
+     * @param chainSelector limiting the concurrent jobs per chain
+     */
+    EnhancementQueue(final int threads, final int capacity, ChainSelector chainSelector) {
+        this.chainSelector = chainSelector;
+        slots = new Semaphore(threads + capacity);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ecs-enhancement-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reserves a slot for a job that will be submitted later.
+     *
+     * @return true if a slot could be reserved, false if the queue is full
+     */
+    boolean tryReserve() {
+        return slots.tryAcquire();
+    }
+
+    /**
+     * Reserves a slot waiting for one to become available if necessary.
+     */
+    void reserve() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Releases a reserved slot without submitting a job.
+     */
+    void cancelReservation() {
+        slots.release();
+    }
+
+    /**
+     * Submits a job for which a slot has previously been reserved.
+     *
+     * @param contentUri the content item the job is about
+     * @param chain the chain the job uses, a permit of it is held while the
+     * job runs
+     * @param job the job to execute
+     * @throws RejectedExecutionException if the queue has been shut down,
+     * the slot is released then
+     */
+    void submit(final IRI contentUri, final String chain, final Runnable job) {
+        failed.remove(contentUri);
+        pending.put(contentUri, State.QUEUED);
+        final Task task = new Task(contentUri, chain, job);
+        synchronized (waiting) {
+            if (!chainSelector.tryAcquire(chain)) {
+                Queue<Task> chainQueue = waiting.get(chain);
+                if (chainQueue == null) {
+                    chainQueue = new LinkedList<Task>();
+                    waiting.put(chain, chainQueue);
+                }
+                chainQueue.add(task);
+                return;
+            }
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.abandon();
+            throw ex;
+        }
+    }
+
+    /**
+     * Hands waiting jobs of the chain to the workers as long as permits are
+     * available, to be called after a permit of the chain has been
+     * released.
+     */
+    void chainReleased(String chain) {
+        synchronized (waiting) {
+            final Queue<Task> chainQueue = waiting.get(chain);
+            while ((chainQueue != null) && !chainQueue.isEmpty()
+                    && chainSelector.tryAcquire(chain)) {
+                final Task task = chainQueue.poll();
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException ex) {
+                    log.warn("Enhancement of " + task.contentUri + " dropped, the queue "
+                            + "has been shut down");
+                    task.abandon();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the state of the job for the specified content item or null if
+     * there is no such job queued, running or recently failed
+     */
+    State getState(IRI contentUri) {
+        final State state = pending.get(contentUri);
+        if (state != null) {
+            return state;
+        }
+        return failed.get(contentUri);
+    }
+
+    /**
+     * @return the number of jobs queued or running
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    void shutdown() {
+        synchronized (waiting) {
+            for (Queue<Task> chainQueue : waiting.values()) {
+                for (Task task : chainQueue) {
+                    pending.remove(task.contentUri);
+                    slots.release();
+                }
+            }
+            waiting.clear();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Enhancement jobs still running on shutdown: " + pending.keySet());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A job with the chain permit and the slot it holds while running.
+     */
+    private class Task implements Runnable {
+
+        private final IRI contentUri;
+        private final String chain;
+        private final Runnable job;
+
+        Task(IRI contentUri, String chain, Runnable job) {
+            this.contentUri = contentUri;
+            this.chain = chain;
+            this.job = job;
+        }
+
+        public void run() {
+            pending.put(contentUri, State.RUNNING);
+            try {
+                job.run();
+                pending.remove(contentUri);
+            } catch (RuntimeException ex) {
+                log.error("Enhancing " + contentUri + " failed", ex);
+                failed.put(contentUri, State.FAILED);
+                pending.remove(contentUri);
+            } finally {
+                chainSelector.release(chain);
+                slots.release();
+                chainReleased(chain);
+            }
+        }
+
+        /**
+         * Releases the chain permit and the slot of a task that has not been
+         * run.
+         */
+        void abandon() {
+            pending.remove(contentUri);
+            chainSelector.release(chain);
+            slots.release();
+        }
+    }
+}
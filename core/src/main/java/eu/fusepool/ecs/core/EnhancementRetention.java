@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.clerezza.commons.rdf.BlankNode;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.stanbol.enhancer.servicesapi.rdf.Properties;
+import org.apache.stanbol.enhancer.servicesapi.rdf.TechnicalClasses;
+
+/**
+ * Decides which enhancements are kept and removes the others. None of the
+ * methods acquires locks, callers must hold the write lock of the graph.
+ *
+ * @author Reto
+ */
+class EnhancementRetention {
+
+    private final double minConfidence;
+    private final boolean dropUnreferencedTextAnnotations;
+
+    /**
+     * @param minConfidence enhancements with a lower confidence are removed
+     * @param dropUnreferencedTextAnnotations if true text annotations no
+     * other enhancement relates to are removed
+     */
+    EnhancementRetention(double minConfidence, boolean dropUnreferencedTextAnnotations) {
+        this.minConfidence = minConfidence;
+        this.dropUnreferencedTextAnnotations = dropUnreferencedTextAnnotations;
+    }
+
+    /**
+     * Removes the enhancements that are not to be retained.
+     *
+     * @param graph the graph containing the enhancements
+     * @param enhancements the enhancements to check
+     * @return the number of triples removed
+     */
+    int apply(Graph graph, Collection<BlankNodeOrIRI> enhancements) {
+        int removed = 0;
+        final List<BlankNodeOrIRI> remaining = new ArrayList<BlankNodeOrIRI>(enhancements.size());
+        for (BlankNodeOrIRI enhancement : enhancements) {
+            if ((minConfidence > 0) && (getConfidence(graph, enhancement) < minConfidence)) {
+                removed += removeEnhancement(graph, enhancement);
+            } else {
+                remaining.add(enhancement);
+            }
+        }
+        if (dropUnreferencedTextAnnotations) {
+            for (BlankNodeOrIRI enhancement : remaining) {
+                if (graph.contains(new TripleImpl(enhancement, RDF.type,
+                        TechnicalClasses.ENHANCER_TEXTANNOTATION))
+                        && !graph.filter(null, Properties.DC_RELATION, enhancement).hasNext()) {
+                    removed += removeEnhancement(graph, enhancement);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all but the most recent of enhancements created by the same
+     * engine for the same entity or the same portion of text, as left by
+     * repeated enhancements of a content item.
+     *
+     * @return the number of triples removed
+     */
+    static int removeDuplicates(Graph graph, Collection<BlankNodeOrIRI> enhancements) {
+        final Map<List<Object>, BlankNodeOrIRI> newest = new HashMap<List<Object>, BlankNodeOrIRI>();
+        int removed = 0;
+        for (BlankNodeOrIRI enhancement : enhancements) {
+            final List<Object> key = Arrays.<Object>asList(
+                    getObjects(graph, enhancement, RDF.type),
+                    getObjects(graph, enhancement, Properties.DC_CREATOR),
+                    getObjects(graph, enhancement, Properties.ENHANCER_ENTITY_REFERENCE),
+                    getObjects(graph, enhancement, Properties.ENHANCER_START),
+                    getObjects(graph, enhancement, Properties.ENHANCER_END));
+            final BlankNodeOrIRI other = newest.get(key);
+            if (other == null) {
+                newest.put(key, enhancement);
+            } else if (getCreated(graph, enhancement).compareTo(getCreated(graph, other)) > 0) {
+                removed += removeEnhancement(graph, other);
+                newest.put(key, enhancement);
+            } else {
+                removed += removeEnhancement(graph, enhancement);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the enhancements extracted from the content item
+     */
+    static List<BlankNodeOrIRI> getEnhancements(Graph graph, IRI contentItem) {
+        final List<BlankNodeOrIRI> result = new ArrayList<BlankNodeOrIRI>();
+        final Iterator<Triple> triples = graph.filter(null, Properties.ENHANCER_EXTRACTED_FROM,
+                contentItem);
+        while (triples.hasNext()) {
+            result.add(triples.next().getSubject());
+        }
+        return result;
+    }
+
+    /**
+     * Removes all enhancements extracted from the content item.
+     *
+     * @return the number of triples removed
+     */
+    static int removeEnhancements(Graph graph, IRI contentItem) {
+        int removed = 0;
+        for (BlankNodeOrIRI enhancement : getEnhancements(graph, contentItem)) {
+            removed += removeEnhancement(graph, enhancement);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the concise bounded description of the enhancement and the
+     * triples referring to it.
+     *
+     * @return the number of triples removed
+     */
+    static int removeEnhancement(Graph graph, BlankNodeOrIRI enhancement) {
+        final Set<Triple> triples = new HashSet<Triple>();
+        collectCBD(graph, enhancement, triples);
+        final Iterator<Triple> incoming = graph.filter(null, null, enhancement);
+        while (incoming.hasNext()) {
+            triples.add(incoming.next());
+        }
+        graph.removeAll(triples);
+        return triples.size();
+    }
+
+    private static void collectCBD(Graph graph, BlankNodeOrIRI node, Set<Triple> result) {
+        final Iterator<Triple> triples = graph.filter(node, null, null);
+        final List<BlankNode> blankObjects = new ArrayList<BlankNode>();
+        while (triples.hasNext()) {
+            final Triple triple = triples.next();
+            if (result.add(triple) && (triple.getObject() instanceof BlankNode)) {
+                blankObjects.add((BlankNode) triple.getObject());
+            }
+        }
+        for (BlankNode blankObject : blankObjects) {
+            collectCBD(graph, blankObject, result);
+        }
+    }
+
+    private static double getConfidence(Graph graph, BlankNodeOrIRI enhancement) {
+        final Iterator<Triple> triples = graph.filter(enhancement,
+                Properties.ENHANCER_CONFIDENCE, null);
+        if (triples.hasNext()) {
+            final RDFTerm confidence = triples.next().getObject();
+            if (confidence instanceof Literal) {
+                try {
+                    return Double.parseDouble(((Literal) confidence).getLexicalForm());
+                } catch (NumberFormatException ex) {
+                    //treated as having no confidence value
+                }
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return the lexical form of dc:created, for xsd:dateTime values in
+     * the same timezone this orders chronologically
+     */
+    private static String getCreated(Graph graph, BlankNodeOrIRI enhancement) {
+        final Iterator<Triple> triples = graph.filter(enhancement, Properties.DC_CREATED, null);
+        if (triples.hasNext()) {
+            final RDFTerm created = triples.next().getObject();
+            if (created instanceof Literal) {
+                return ((Literal) created).getLexicalForm();
+            }
+        }
+        return "";
+    }
+
+    private static Set<RDFTerm> getObjects(Graph graph, BlankNodeOrIRI subject, IRI predicate) {
+        final Set<RDFTerm> result = new HashSet<RDFTerm>();
+        final Iterator<Triple> triples = graph.filter(subject, predicate, null);
+        while (triples.hasNext()) {
+            result.add(triples.next().getObject());
+        }
+        return result;
+    }
+}
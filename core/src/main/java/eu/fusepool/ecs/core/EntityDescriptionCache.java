@@ -0,0 +1,422 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.WatchableGraph;
+import org.apache.clerezza.commons.rdf.event.FilterTriple;
+import org.apache.clerezza.commons.rdf.event.GraphEvent;
+import org.apache.clerezza.commons.rdf.event.GraphListener;
+import org.apache.clerezza.commons.rdf.impl.utils.simple.SimpleGraph;
+import org.apache.clerezza.platform.graphprovider.content.ContentGraphProvider;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.stanbol.entityhub.model.clerezza.RdfValueFactory;
+import org.apache.stanbol.entityhub.servicesapi.model.Entity;
+import org.apache.stanbol.entityhub.servicesapi.model.Representation;
+import org.apache.stanbol.entityhub.servicesapi.site.SiteManager;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the descriptions of entities as returned by the SiteManager as well
+ * as the literals and types the content graph has for them.
+ *
+ * Entities unknown to the SiteManager are cached as well (with a shorter
+ * time to live). The description from the content graph is dropped whenever
+ * a triple with the entity as subject is added to or removed from the
+ * content graph, or <code>invalidate</code> is called for the entity.
+ *
+ * Lookups for several entities are done concurrently by a bounded number of
+ * threads with a bounded queue. Entities of which the lookup is rejected,
+ * fails or doesn't complete within the configured time are left out, a
+ * lookup that doesn't complete in time continues and caches its result.
+ *
+ * @author Reto
+ */
+@Component
+@Service(EntityDescriptionCache.class)
+public class EntityDescriptionCache {
+
+    private static final Logger log = LoggerFactory.getLogger(EntityDescriptionCache.class);
+
+    /**
+     * The maximum number of entities for which descriptions are cached
+     */
+    @Property(intValue = 10000)
+    public static final String CACHE_SIZE = "entityCacheSize";
+    /**
+     * The number of seconds after which a cached description expires
+     */
+    @Property(intValue = 3600)
+    public static final String TIME_TO_LIVE = "entityCacheTimeToLive";
+    /**
+     * The number of seconds after which the information that the SiteManager
+     * doesn't know an entity expires
+     */
+    @Property(intValue = 300)
+    public static final String MISS_TIME_TO_LIVE = "entityCacheMissTimeToLive";
+    /**
+     * The number of lookups with the SiteManager executed concurrently
+     */
+    @Property(intValue = 8)
+    public static final String LOOKUP_THREADS = "entityLookupThreads";
+    /**
+     * The number of lookups waiting for a thread, further lookups are
+     * rejected
+     */
+    @Property(intValue = 100)
+    public static final String LOOKUP_QUEUE_CAPACITY = "entityLookupQueueCapacity";
+    /**
+     * The number of milliseconds within which the lookups of the entities of
+     * a result must complete
+     */
+    @Property(intValue = 2000)
+    public static final String LOOKUP_TIMEOUT = "entityLookupTimeout";
+    /**
+     * This service allows to get entities from configures sites
+     */
+    @Reference
+    private SiteManager siteManager;
+    @Reference
+    private ContentGraphProvider contentGraphProvider;
+    private ExpiringCache<IRI, Collection<Triple>> representations;
+    private ExpiringCache<IRI, Collection<Triple>> localDescriptions;
+    private long timeToLive;
+    private long missTimeToLive;
+    private long lookupTimeout;
+    private ThreadPoolExecutor lookupExecutor;
+    /**
+     * The lookups that are queued or running, so that an entity is not
+     * looked up again while a lookup that timed out continues
+     */
+    private final ConcurrentMap<IRI, Future<Collection<Triple>>> pendingLookups =
+            new ConcurrentHashMap<IRI, Future<Collection<Triple>>>();
+    private final AtomicLong lookupTimeouts = new AtomicLong();
+    private final AtomicLong lookupRejections = new AtomicLong();
+    private final AtomicLong lookupFailures = new AtomicLong();
+    /**
+     * The durations of the lookups with the SiteManager
+     */
+    private final Timing lookupTime = new Timing();
+    /**
+     * Drops the cached description of the subjects of changed triples
+     */
+    private final GraphListener invalidator = new GraphListener() {
+        public void graphChanged(List<GraphEvent> events) {
+            for (GraphEvent event : events) {
+                final BlankNodeOrIRI subject = event.getTriple().getSubject();
+                if (subject instanceof IRI) {
+                    invalidate((IRI) subject);
+                }
+            }
+        }
+    };
+    private WatchableGraph watchedGraph;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        final int cacheSize = ConfigUtils.getInt(context, CACHE_SIZE, 10000);
+        representations = new ExpiringCache<IRI, Collection<Triple>>(cacheSize);
+        localDescriptions = new ExpiringCache<IRI, Collection<Triple>>(cacheSize);
+        timeToLive = ConfigUtils.getInt(context, TIME_TO_LIVE, 3600) * 1000L;
+        missTimeToLive = ConfigUtils.getInt(context, MISS_TIME_TO_LIVE, 300) * 1000L;
+        lookupTimeout = ConfigUtils.getInt(context, LOOKUP_TIMEOUT, 2000);
+        final int lookupThreads = ConfigUtils.getInt(context, LOOKUP_THREADS, 8);
+        lookupExecutor = new ThreadPoolExecutor(lookupThreads, lookupThreads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                ConfigUtils.getInt(context, LOOKUP_QUEUE_CAPACITY, 100)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ecs-entity-lookup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Graph contentGraph = contentGraphProvider.getContentGraph();
+        if (contentGraph instanceof WatchableGraph) {
+            watchedGraph = (WatchableGraph) contentGraph;
+            watchedGraph.addGraphListener(invalidator, new FilterTriple(null, null, null));
+        } else {
+            log.warn("Content graph cannot be watched, cached entity descriptions "
+                    + "are only invalidated on enhancement");
+        }
+    }
+
+    @Deactivate
+    protected void deactivate(ComponentContext context) {
+        if (watchedGraph != null) {
+            watchedGraph.removeGraphListener(invalidator);
+            watchedGraph = null;
+        }
+        lookupExecutor.shutdownNow();
+        pendingLookups.clear();
+    }
+
+    /**
+     * Returns the triples of the representation the SiteManager has for the
+     * specified entity.
+     *
+     * @return the triples or an empty collection if the entity is not known
+     */
+    public Collection<Triple> getRepresentation(IRI iri) {
+        final Collection<Triple> result = representations.get(iri);
+        return result == null ? lookup(iri) : result;
+    }
+
+    /**
+     * Returns the triples of the representations the SiteManager has for the
+     * specified entities, looking up the entities that are not cached
+     * concurrently.
+     *
+     * @return the triples by entity, entities of which the lookup was
+     * rejected, failed or didn't complete in time are missing
+     */
+    Map<IRI, Collection<Triple>> getRepresentations(Collection<IRI> iris) {
+        final Map<IRI, Collection<Triple>> result = new HashMap<IRI, Collection<Triple>>();
+        final Map<IRI, Future<Collection<Triple>>> lookups =
+                new HashMap<IRI, Future<Collection<Triple>>>();
+        for (IRI iri : iris) {
+            final Collection<Triple> representation = representations.get(iri);
+            if (representation != null) {
+                result.put(iri, representation);
+            } else {
+                final Future<Collection<Triple>> lookup = startLookup(iri);
+                if (lookup != null) {
+                    lookups.put(iri, lookup);
+                }
+            }
+        }
+        final long deadline = System.currentTimeMillis() + lookupTimeout;
+        for (Map.Entry<IRI, Future<Collection<Triple>>> lookup : lookups.entrySet()) {
+            try {
+                result.put(lookup.getKey(), lookup.getValue().get(
+                        Math.max(deadline - System.currentTimeMillis(), 0),
+                        TimeUnit.MILLISECONDS));
+            } catch (TimeoutException ex) {
+                lookupTimeouts.incrementAndGet();
+            } catch (ExecutionException ex) {
+                lookupFailures.incrementAndGet();
+                log.warn("Looking up " + lookup.getKey() + " failed", ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts looking up the entity unless a lookup of it is pending already.
+     *
+     * @return the pending lookup or null if the lookup has been rejected
+     */
+    private Future<Collection<Triple>> startLookup(final IRI iri) {
+        final Future<Collection<Triple>> pending = pendingLookups.get(iri);
+        if (pending != null) {
+            return pending;
+        }
+        final FutureTask<Collection<Triple>> task = new FutureTask<Collection<Triple>>(
+                new Callable<Collection<Triple>>() {
+                    public Collection<Triple> call() {
+                        return lookup(iri);
+                    }
+                }) {
+            @Override
+            protected void done() {
+                pendingLookups.remove(iri, this);
+            }
+        };
+        final Future<Collection<Triple>> concurrent = pendingLookups.putIfAbsent(iri, task);
+        if (concurrent != null) {
+            return concurrent;
+        }
+        try {
+            lookupExecutor.execute(task);
+            return task;
+        } catch (RejectedExecutionException ex) {
+            pendingLookups.remove(iri, task);
+            lookupRejections.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the entity with the SiteManager and caches the result.
+     */
+    private Collection<Triple> lookup(IRI iri) {
+        final long start = System.nanoTime();
+        final Entity entity;
+        try {
+            entity = siteManager.getEntity(iri.getUnicodeString());
+        } finally {
+            lookupTime.record(System.nanoTime() - start);
+        }
+        final Representation representation = entity == null ? null
+                : entity.getRepresentation();
+        final Collection<Triple> result;
+        if (representation == null) {
+            result = Collections.emptyList();
+            representations.put(iri, result, missTimeToLive);
+        } else {
+            final Graph graph = new SimpleGraph();
+            new RdfValueFactory(graph).toRdfRepresentation(representation);
+            result = Collections.unmodifiableList(new ArrayList<Triple>(graph));
+            representations.put(iri, result, timeToLive);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the triples from the content graph with the entity as subject
+     * that have either a literal as object or rdf:type as predicate. We
+     * have to be selective or we would add all the documents the entity is
+     * a subject of.
+     */
+    public Collection<Triple> getLocalDescription(IRI iri, Graph contentGraph) {
+        Collection<Triple> result = localDescriptions.get(iri);
+        if (result == null) {
+            Lock l = contentGraph.getLock().readLock();
+            l.lock();
+            try {
+                result = Collections.unmodifiableList(readLocalDescription(iri, contentGraph));
+                //while holding the lock, so that no change is missed
+                putLocalDescription(iri, result);
+            } finally {
+                l.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the cached description from the content graph or null if it
+     * isn't cached
+     */
+    Collection<Triple> getCachedLocalDescription(IRI iri) {
+        return localDescriptions.get(iri);
+    }
+
+    /**
+     * Caches a description read with <code>readLocalDescription</code>.
+     */
+    void putLocalDescription(IRI iri, Collection<Triple> description) {
+        localDescriptions.put(iri, description, timeToLive);
+    }
+
+    /**
+     * Reads the description of an entity from the content graph, the caller
+     * must hold the read lock.
+     */
+    static List<Triple> readLocalDescription(IRI iri, Graph contentGraph) {
+        final List<Triple> triples = new ArrayList<Triple>();
+        Iterator<Triple> allOutgoing = contentGraph.filter(iri, null, null);
+        while (allOutgoing.hasNext()) {
+            Triple t = allOutgoing.next();
+            if (t.getPredicate().equals(RDF.type)
+                    || (t.getObject() instanceof Literal)) {
+                triples.add(t);
+            }
+        }
+        return triples;
+    }
+
+    /**
+     * Invalidates the cached description of the entity from the content
+     * graph, to be called after triples with the entity as subject have been
+     * changed.
+     */
+    public void invalidate(IRI iri) {
+        localDescriptions.remove(iri);
+    }
+
+    public long getHitCount() {
+        return representations.getHits() + localDescriptions.getHits();
+    }
+
+    public long getMissCount() {
+        return representations.getMisses() + localDescriptions.getMisses();
+    }
+
+    public long getEvictionCount() {
+        return representations.getEvictions() + localDescriptions.getEvictions();
+    }
+
+    public int getSize() {
+        return representations.size();
+    }
+
+    /**
+     * @return the timing of the lookups with the SiteManager
+     */
+    Timing getLookupTiming() {
+        return lookupTime;
+    }
+
+    /**
+     * @return the number of lookups that didn't complete in time
+     */
+    long getLookupTimeoutCount() {
+        return lookupTimeouts.get();
+    }
+
+    /**
+     * @return the number of lookups rejected as the queue was full
+     */
+    long getLookupRejectionCount() {
+        return lookupRejections.get();
+    }
+
+    /**
+     * @return the number of lookups that threw an exception
+     */
+    long getLookupFailureCount() {
+        return lookupFailures.get();
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.ontologies.ECS;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps the values of the properties content items are filtered by (such as
+ * dc:subject and rdf:type) to bitmaps of the content items having that
+ * value. The content items are numbered in the order they are added, so
+ * that the bitmaps are dense.
+ *
+ * The index is kept in memory, it is built from the content graph when
+ * the store is activated and then updated as content items are enhanced
+ * and as their values or the content items are removed. Until it has been
+ * built <code>isReady</code> returns false.
+ *
+ * For every content item the values it has are kept as well, so that facet
+ * counts can be estimated from a sample of the content items without
+ * visiting the bitmaps of all values.
+ *
+ * @author Reto
+ */
+class FilterIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(FilterIndex.class);
+    /**
+     * The number of content items added with one acquisition of the read
+     * lock of the content graph while building
+     */
+    private static final int BUILD_CHUNK_SIZE = 1000;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<IRI, Integer> ids = new HashMap<IRI, Integer>();
+    private final List<IRI> contentItems = new ArrayList<IRI>();
+    /**
+     * The ids of the content items that have not been removed
+     */
+    private final RoaringBitmap all = new RoaringBitmap();
+    private final Map<IRI, PropertyIndex> properties = new HashMap<IRI, PropertyIndex>();
+    private volatile boolean ready = false;
+    /**
+     * Distinguishes this index from indexes built earlier, which may have
+     * assigned different ids
+     */
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * @param properties the properties of which the values are indexed
+     */
+    FilterIndex(IRI... properties) {
+        for (IRI property : properties) {
+            this.properties.put(property, new PropertyIndex());
+        }
+    }
+
+    /**
+     * Adds the values the content item has in the graph, values the content
+     * item had before are kept. A removed content item gets its previous id
+     * back. The caller must hold a lock on the graph.
+     */
+    void add(IRI contentItem, Graph graph) {
+        final Lock l = lock.writeLock();
+        l.lock();
+        try {
+            Integer id = ids.get(contentItem);
+            if (id == null) {
+                id = contentItems.size();
+                ids.put(contentItem, id);
+                contentItems.add(contentItem);
+            } else {
+                contentItems.set(id, contentItem);
+            }
+            all.add(id);
+            for (Map.Entry<IRI, PropertyIndex> entry : properties.entrySet()) {
+                final Iterator<Triple> triples = graph.filter(contentItem, entry.getKey(), null);
+                while (triples.hasNext()) {
+                    final RDFTerm value = triples.next().getObject();
+                    if (value instanceof IRI) {
+                        entry.getValue().add(id, (IRI) value);
+                    }
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * @return true if the values of the property are indexed
+     */
+    boolean isIndexed(IRI property) {
+        return properties.containsKey(property);
+    }
+
+    /**
+     * Removes the content item with all its values. Its id is kept, so that
+     * it gets the same position if it is added again.
+     */
+    void remove(IRI contentItem) {
+        final Lock l = lock.writeLock();
+        l.lock();
+        try {
+            final Integer id = ids.get(contentItem);
+            if (id == null) {
+                return;
+            }
+            contentItems.set(id, null);
+            all.remove(id);
+            for (PropertyIndex propertyIndex : properties.values()) {
+                propertyIndex.removeAll(id);
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Removes a value of an indexed property of the content item, if it has
+     * it.
+     */
+    void remove(IRI contentItem, IRI property, IRI value) {
+        final Lock l = lock.writeLock();
+        l.lock();
+        try {
+            final Integer id = ids.get(contentItem);
+            if (id != null) {
+                properties.get(property).remove(id, value);
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Adds all content items of the graph, taking the read lock of the graph
+     * for chunks of content items. Content items can be added concurrently.
+     */
+    void build(Graph contentGraph) {
+        final long start = System.currentTimeMillis();
+        final List<IRI> items = new ArrayList<IRI>();
+        Lock l = contentGraph.getLock().readLock();
+        l.lock();
+        try {
+            final Iterator<Triple> triples = contentGraph.filter(null, RDF.type, ECS.ContentItem);
+            while (triples.hasNext()) {
+                final BlankNodeOrIRI item = triples.next().getSubject();
+                if (item instanceof IRI) {
+                    items.add((IRI) item);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+        for (int chunkStart = 0; chunkStart < items.size(); chunkStart += BUILD_CHUNK_SIZE) {
+            l = contentGraph.getLock().readLock();
+            l.lock();
+            try {
+                for (IRI item : items.subList(chunkStart,
+                        Math.min(chunkStart + BUILD_CHUNK_SIZE, items.size()))) {
+                    //removed since it was listed
+                    if (!contentGraph.contains(new TripleImpl(item, RDF.type, ECS.ContentItem))) {
+                        continue;
+                    }
+                    add(item, contentGraph);
+                }
+            } finally {
+                l.unlock();
+            }
+        }
+        ready = true;
+        log.info("Built filter index of " + items.size() + " content items in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the number of ids assigned so far, every id is lower
+     */
+    int getIdCount() {
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            return contentItems.size();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Returns the content items having all the specified values.
+     *
+     * @param values the required values by property
+     * @return a new bitmap of the ids of the matching content items
+     */
+    RoaringBitmap filter(Map<IRI, Collection<IRI>> values) {
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            RoaringBitmap result = null;
+            for (Map.Entry<IRI, Collection<IRI>> entry : values.entrySet()) {
+                final PropertyIndex propertyIndex = properties.get(entry.getKey());
+                for (IRI value : entry.getValue()) {
+                    final RoaringBitmap bitmap = propertyIndex.getBitmap(value);
+                    if (bitmap == null) {
+                        return new RoaringBitmap();
+                    }
+                    result = result == null ? bitmap.copy() : result.and(bitmap);
+                }
+            }
+            if (result == null) {
+                throw new IllegalArgumentException("No values specified");
+            }
+            return result;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Offers to topFacets the values of the property with the number of
+     * the content items in the bitmap having that value. If there are fewer
+     * content items than values the values of every content item are
+     * counted, otherwise the bitmap of every value is intersected.
+     *
+     * @param ignoredValues values that are not offered
+     */
+    void countFacets(IRI property, RoaringBitmap contentItemIds, Set<String> ignoredValues,
+            TopFacets topFacets) {
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            final PropertyIndex propertyIndex = properties.get(property);
+            if (contentItemIds.getCardinality() < propertyIndex.values.size()) {
+                final Map<Integer, int[]> counts = propertyIndex.countValues(
+                        contentItemIds.toArray());
+                for (Map.Entry<Integer, int[]> entry : counts.entrySet()) {
+                    final String value = propertyIndex.values.get(entry.getKey())
+                            .getUnicodeString();
+                    if (!ignoredValues.contains(value)) {
+                        topFacets.offer(value, entry.getValue()[0]);
+                    }
+                }
+                return;
+            }
+            for (int ordinal = 0; ordinal < propertyIndex.values.size(); ordinal++) {
+                final String value = propertyIndex.values.get(ordinal).getUnicodeString();
+                if (ignoredValues.contains(value)) {
+                    continue;
+                }
+                final int count = contentItemIds.andCardinality(
+                        propertyIndex.bitmaps.get(ordinal));
+                if (count > 0) {
+                    topFacets.offer(value, count);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Like <code>countFacets</code> but if the bitmap contains more than
+     * sampleSize content items the counts are estimated from the values of
+     * an evenly spaced sample of them. Values occurring in none of the
+     * sampled content items are not offered.
+     *
+     * @return true if the counts are estimates
+     */
+    boolean estimateFacets(IRI property, RoaringBitmap contentItemIds,
+            Set<String> ignoredValues, TopFacets topFacets, int sampleSize) {
+        final int cardinality = contentItemIds.getCardinality();
+        if (cardinality <= sampleSize) {
+            countFacets(property, contentItemIds, ignoredValues, topFacets);
+            return false;
+        }
+        final int[] sample = contentItemIds.sample(sampleSize);
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            final PropertyIndex propertyIndex = properties.get(property);
+            final Map<Integer, int[]> sampleCounts = propertyIndex.countValues(sample);
+            for (Map.Entry<Integer, int[]> entry : sampleCounts.entrySet()) {
+                final int ordinal = entry.getKey();
+                final String value = propertyIndex.values.get(ordinal).getUnicodeString();
+                if (ignoredValues.contains(value)) {
+                    continue;
+                }
+                //no more content items than having the value at all
+                final long estimate = Math.round((double) entry.getValue()[0]
+                        * cardinality / sample.length);
+                topFacets.offer(value, (int) Math.min(estimate,
+                        propertyIndex.bitmaps.get(ordinal).getCardinality()));
+            }
+        } finally {
+            l.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * @return a new bitmap of the ids of all content items
+     */
+    RoaringBitmap getAll() {
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            return all.copy();
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * @return the content items with the specified ids, without the ones
+     * removed in the meantime
+     */
+    List<IRI> getContentItems(int[] contentItemIds) {
+        final List<IRI> result = new ArrayList<IRI>(contentItemIds.length);
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            for (int id : contentItemIds) {
+                final IRI contentItem = contentItems.get(id);
+                if (contentItem != null) {
+                    result.add(contentItem);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids of the specified content items that are in the index
+     */
+    RoaringBitmap getIds(Collection<? extends BlankNodeOrIRI> items) {
+        final RoaringBitmap result = new RoaringBitmap();
+        final Lock l = lock.readLock();
+        l.lock();
+        try {
+            for (BlankNodeOrIRI item : items) {
+                final Integer id = ids.get(item);
+                if ((id != null) && (contentItems.get(id) != null)) {
+                    result.add(id);
+                }
+            }
+        } finally {
+            l.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * The values of a property with the bitmaps of the content items having
+     * them, and for every content item the ordinals of its values.
+     */
+    private static class PropertyIndex {
+
+        private static final int[] NO_VALUES = new int[0];
+        final Map<IRI, Integer> ordinals = new HashMap<IRI, Integer>();
+        final List<IRI> values = new ArrayList<IRI>();
+        final List<RoaringBitmap> bitmaps = new ArrayList<RoaringBitmap>();
+        /**
+         * The ordinals of the values by content item id
+         */
+        final List<int[]> itemValues = new ArrayList<int[]>();
+
+        void add(int id, IRI value) {
+            Integer ordinal = ordinals.get(value);
+            if (ordinal == null) {
+                ordinal = values.size();
+                ordinals.put(value, ordinal);
+                values.add(value);
+                bitmaps.add(new RoaringBitmap());
+            }
+            bitmaps.get(ordinal).add(id);
+            while (itemValues.size() <= id) {
+                itemValues.add(NO_VALUES);
+            }
+            final int[] previous = itemValues.get(id);
+            for (int existing : previous) {
+                if (existing == ordinal) {
+                    return;
+                }
+            }
+            final int[] updated = Arrays.copyOf(previous, previous.length + 1);
+            updated[previous.length] = ordinal;
+            itemValues.set(id, updated);
+        }
+
+        void remove(int id, IRI value) {
+            final Integer ordinal = ordinals.get(value);
+            if (ordinal == null) {
+                return;
+            }
+            bitmaps.get(ordinal).remove(id);
+            final int[] previous = getValues(id);
+            for (int i = 0; i < previous.length; i++) {
+                if (previous[i] == ordinal) {
+                    final int[] updated = Arrays.copyOf(previous, previous.length - 1);
+                    System.arraycopy(previous, i + 1, updated, i, updated.length - i);
+                    itemValues.set(id, updated);
+                    return;
+                }
+            }
+        }
+
+        void removeAll(int id) {
+            for (int ordinal : getValues(id)) {
+                bitmaps.get(ordinal).remove(id);
+            }
+            if (id < itemValues.size()) {
+                itemValues.set(id, NO_VALUES);
+            }
+        }
+
+        /**
+         * @return the number of the content items with the specified ids
+         * having a value by the ordinal of the value, values none of them
+         * has are not contained
+         */
+        Map<Integer, int[]> countValues(int[] ids) {
+            final Map<Integer, int[]> result = new HashMap<Integer, int[]>();
+            for (int id : ids) {
+                for (int ordinal : getValues(id)) {
+                    final int[] count = result.get(ordinal);
+                    if (count == null) {
+                        result.put(ordinal, new int[]{1});
+                    } else {
+                        count[0]++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        int[] getValues(int id) {
+            return id < itemValues.size() ? itemValues.get(id) : NO_VALUES;
+        }
+
+        RoaringBitmap getBitmap(IRI value) {
+            final Integer ordinal = ordinals.get(value);
+            return ordinal == null ? null : bitmaps.get(ordinal);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.core.intercept.Interceptor;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.rdf.utils.GraphNode;
+import org.osgi.framework.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches to the bound interceptors. Interceptors are invoked in the order
+ * of their service ranking (highest first), every invocation works on an
+ * immutable snapshot of the interceptors so binding and unbinding doesn't
+ * affect invocations in progress.
+ *
+ * Notifications about metadata requests are delivered asynchronously by a
+ * bounded pool of threads, notifications that cannot be queued are dropped.
+ *
+ * @author Reto
+ */
+class InterceptorChain {
+
+    private static final Logger log = LoggerFactory.getLogger(InterceptorChain.class);
+    private static final RankedInterceptor[] EMPTY = new RankedInterceptor[0];
+    private volatile RankedInterceptor[] snapshot = EMPTY;
+    private final ThreadPoolExecutor notificationExecutor;
+    private final AtomicLong droppedNotifications = new AtomicLong();
+
+    /**
+     * @param notificationThreads the number of threads delivering
+     * notifications
+     * @param notificationQueueCapacity the number of notifications that may
+     * wait for delivery
+     */
+    InterceptorChain(int notificationThreads, int notificationQueueCapacity) {
+        notificationExecutor = new ThreadPoolExecutor(notificationThreads,
+                notificationThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(notificationQueueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "ecs-interceptor-notification-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        notificationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void add(Interceptor interceptor, Map<String, Object> properties) {
+        final RankedInterceptor[] newSnapshot = Arrays.copyOf(snapshot, snapshot.length + 1);
+        newSnapshot[snapshot.length] = new RankedInterceptor(interceptor,
+                getLong(properties, Constants.SERVICE_RANKING),
+                getLong(properties, Constants.SERVICE_ID));
+        Arrays.sort(newSnapshot, new Comparator<RankedInterceptor>() {
+            public int compare(RankedInterceptor o1, RankedInterceptor o2) {
+                if (o1.ranking != o2.ranking) {
+                    return o1.ranking > o2.ranking ? -1 : 1;
+                }
+                return o1.serviceId < o2.serviceId ? -1
+                        : (o1.serviceId == o2.serviceId ? 0 : 1);
+            }
+        });
+        snapshot = newSnapshot;
+    }
+
+    synchronized void remove(Interceptor interceptor) {
+        final RankedInterceptor[] current = snapshot;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].interceptor == interceptor) {
+                final RankedInterceptor[] newSnapshot = new RankedInterceptor[current.length - 1];
+                System.arraycopy(current, 0, newSnapshot, 0, i);
+                System.arraycopy(current, i + 1, newSnapshot, i, current.length - i - 1);
+                snapshot = newSnapshot;
+                return;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return snapshot.length == 0;
+    }
+
+    Query interceptQuery(Query query) {
+        for (RankedInterceptor rankedInterceptor : snapshot) {
+            final long start = System.nanoTime();
+            try {
+                query = rankedInterceptor.interceptor.interceptQuery(query);
+            } finally {
+                rankedInterceptor.queryTime.record(System.nanoTime() - start);
+            }
+        }
+        return query;
+    }
+
+    GraphNode interceptResult(Query query, GraphNode result) {
+        for (RankedInterceptor rankedInterceptor : snapshot) {
+            final long start = System.nanoTime();
+            try {
+                result = rankedInterceptor.interceptor.interceptResult(query, result);
+            } finally {
+                rankedInterceptor.resultTime.record(System.nanoTime() - start);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Notifies every interceptor without waiting for the notification to be
+     * processed.
+     */
+    void notifyMetaRequest(final IRI iri) {
+        for (final RankedInterceptor rankedInterceptor : snapshot) {
+            try {
+                notificationExecutor.execute(new Runnable() {
+                    public void run() {
+                        final long start = System.nanoTime();
+                        try {
+                            rankedInterceptor.interceptor.notifyMetaRequest(iri);
+                        } catch (RuntimeException ex) {
+                            log.warn("Exception notifying " + rankedInterceptor.interceptor, ex);
+                        } finally {
+                            rankedInterceptor.notificationTime.record(System.nanoTime() - start);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                if (droppedNotifications.incrementAndGet() % 1000 == 1) {
+                    log.warn("Notification queue full, dropped "
+                            + droppedNotifications.get() + " notifications so far");
+                }
+            }
+        }
+    }
+
+    long getDroppedNotificationCount() {
+        return droppedNotifications.get();
+    }
+
+    /**
+     * @return the timings of the interceptors currently bound
+     */
+    RankedInterceptor[] getInterceptors() {
+        return snapshot;
+    }
+
+    void shutdown() {
+        notificationExecutor.shutdown();
+    }
+
+    private static long getLong(Map<String, Object> properties, String name) {
+        if (properties == null) {
+            return 0;
+        }
+        final Object value = properties.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    static class RankedInterceptor {
+
+        final Interceptor interceptor;
+        final long ranking;
+        final long serviceId;
+        final Timing queryTime = new Timing();
+        final Timing resultTime = new Timing();
+        final Timing notificationTime = new Timing();
+
+        RankedInterceptor(Interceptor interceptor, long ranking, long serviceId) {
+            this.interceptor = interceptor;
+            this.ranking = ranking;
+            this.serviceId = serviceId;
+        }
+    }
+}
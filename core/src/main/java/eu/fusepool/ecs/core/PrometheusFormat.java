@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes metrics in the Prometheus text exposition format. Histograms are
+ * written from Timings, with buckets from about a microsecond to about a
+ * minute; the first bucket includes the shorter durations.
+ *
+ * @author Reto
+ */
+class PrometheusFormat {
+
+    static final String MEDIA_TYPE = "text/plain; version=0.0.4";
+    private static final int FIRST_BUCKET = 10;
+    private static final int LAST_BUCKET = 35;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private final StringBuilder out = new StringBuilder();
+    private final Set<String> declared = new HashSet<String>();
+
+    void counter(String name, String help, long value) {
+        declare(name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    void gauge(String name, String help, double value) {
+        declare(name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    void histogram(String name, String help, Timing timing) {
+        declare(name, help, "histogram");
+        writeHistogram(name, "", timing);
+    }
+
+    /**
+     * Writes a histogram for every timing, the keys of the map are the
+     * values of the label.
+     */
+    void histograms(String name, String help, String label, Map<String, Timing> timings) {
+        declare(name, help, "histogram");
+        for (Map.Entry<String, Timing> entry : timings.entrySet()) {
+            writeHistogram(name, label + "=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+        }
+    }
+
+    private void writeHistogram(String name, String labels, Timing timing) {
+        final String bucketPrefix = labels.length() == 0 ? "{le=\"" : "{" + labels + ",le=\"";
+        final String suffix = labels.length() == 0 ? " " : "{" + labels + "} ";
+        long cumulative = 0;
+        for (int bucket = 0; bucket < Timing.BUCKETS; bucket++) {
+            cumulative += timing.getBucketCount(bucket);
+            if ((bucket >= FIRST_BUCKET) && (bucket <= LAST_BUCKET)) {
+                out.append(name).append("_bucket").append(bucketPrefix)
+                        .append((1L << (bucket + 1)) / NANOS_PER_SECOND).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+        }
+        //the count is derived from the buckets to be consistent with them
+        out.append(name).append("_bucket").append(bucketPrefix).append("+Inf\"} ")
+                .append(cumulative).append('\n');
+        out.append(name).append("_sum").append(suffix)
+                .append(timing.getTotalNanos() / NANOS_PER_SECOND).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+
+    private void declare(String name, String help, String type) {
+        if (declared.add(name)) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -33,6 +33,8 @@ public class Query {
     final Integer offset;
     final Integer maxFacets;
     final boolean withContent;
+    final String cursor;
+    final boolean approximateFacets;
 
     public Query(IRI contentStoreUri, 
             IRI contentStoreViewUri, 
@@ -41,6 +43,36 @@ public class Query {
             Collection<String> searchs, 
             Integer items, Integer offset, Integer maxFacets, 
             boolean withContent) {
+        this(contentStoreUri, contentStoreViewUri, subjects, types, searchs,
+                items, offset, maxFacets, withContent, null);
+    }
+
+    /**
+     * @param cursor the cursor of a previous page as returned with ecs:next,
+     * if not null the offset is ignored
+     */
+    public Query(IRI contentStoreUri, 
+            IRI contentStoreViewUri, 
+            Collection<IRI> subjects, 
+            Collection<IRI> types, 
+            Collection<String> searchs, 
+            Integer items, Integer offset, Integer maxFacets, 
+            boolean withContent, String cursor) {
+        this(contentStoreUri, contentStoreViewUri, subjects, types, searchs,
+                items, offset, maxFacets, withContent, cursor, false);
+    }
+
+    /**
+     * @param approximateFacets if true the facet counts may be estimated
+     * for large numbers of matching content items
+     */
+    public Query(IRI contentStoreUri, 
+            IRI contentStoreViewUri, 
+            Collection<IRI> subjects, 
+            Collection<IRI> types, 
+            Collection<String> searchs, 
+            Integer items, Integer offset, Integer maxFacets, 
+            boolean withContent, String cursor, boolean approximateFacets) {
         this.contentStoreUri = contentStoreUri;
         this.contentStoreViewUri = contentStoreViewUri;
         this.subjects = subjects;
@@ -50,6 +82,8 @@ public class Query {
         this.offset = offset;
         this.maxFacets = maxFacets;
         this.withContent = withContent;
+        this.cursor = cursor;
+        this.approximateFacets = approximateFacets;
     }
 
     /**
@@ -99,6 +133,20 @@ public class Query {
     public boolean isWithContent() {
         return withContent;
     }
+
+    /**
+     * @return the cursor of the previous page or null
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return true if estimated facet counts are acceptable
+     */
+    public boolean isApproximateFacets() {
+        return approximateFacets;
+    }
     
     
 }
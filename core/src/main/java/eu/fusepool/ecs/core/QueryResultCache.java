@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.utils.GraphNode;
+import org.apache.stanbol.commons.indexedgraph.IndexedGraph;
+
+/**
+ * Caches the ContentStoreViews computed for queries. Queries that differ only
+ * in the order of their subjects, types or search strings share the same
+ * entry.
+ *
+ * Every entry records the generation of the content at the time it was
+ * computed and is only returned as long as the content is still of that
+ * generation.
+ *
+ * As the entries are bounded by number, views including the content of the
+ * items and views with more than MAX_TRIPLES triples are not cached.
+ *
+ * @author Reto
+ */
+class QueryResultCache {
+
+    /**
+     * Entries don't expire by time, they are invalidated by the generation
+     */
+    private static final long TIME_TO_LIVE = Long.MAX_VALUE / 2;
+    private static final int MAX_TRIPLES = 5000;
+    private final ExpiringCache<Key, Entry> entries;
+
+    QueryResultCache(int maxSize) {
+        entries = new ExpiringCache<Key, Entry>(maxSize);
+    }
+
+    /**
+     * Returns a copy of the cached view for the query, the returned node is
+     * named with the contentStoreViewUri of the specified query.
+     *
+     * @return a GraphNode in a new graph or null if there is no valid entry
+     */
+    GraphNode get(Query query, long generation) {
+        final Key key = new Key(query);
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation) {
+            entries.remove(key);
+            return null;
+        }
+        final IRI viewUri = query.getContentStoreViewUri();
+        final Graph graph = new IndexedGraph();
+        if (entry.viewUri.equals(viewUri)) {
+            graph.addAll(entry.triples);
+        } else {
+            for (Triple triple : entry.triples) {
+                graph.add(rename(triple, entry.viewUri, viewUri));
+            }
+        }
+        return new GraphNode(viewUri, graph);
+    }
+
+    /**
+     * Adds the view computed for a query, unless it includes the content of
+     * the items or is too large.
+     *
+     * @param generation the generation of the content read when computing
+     * the view
+     */
+    void put(Query query, long generation, GraphNode view) {
+        if (query.isWithContent() || (view.getGraph().size() > MAX_TRIPLES)) {
+            return;
+        }
+        final List<Triple> triples = Collections.unmodifiableList(
+                new ArrayList<Triple>(view.getGraph()));
+        entries.put(new Key(query), new Entry(generation,
+                (IRI) view.getNode(), triples), TIME_TO_LIVE);
+    }
+
+    long getHitCount() {
+        return entries.getHits();
+    }
+
+    long getMissCount() {
+        return entries.getMisses();
+    }
+
+    long getEvictionCount() {
+        return entries.getEvictions();
+    }
+
+    int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the ratio of the lookups that have been answered from the cache
+     */
+    double getHitRatio() {
+        final long hits = entries.getHits();
+        final long lookups = hits + entries.getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private static Triple rename(Triple triple, IRI from, IRI to) {
+        final BlankNodeOrIRI subject = triple.getSubject().equals(from) ? to : triple.getSubject();
+        final RDFTerm object = triple.getObject().equals(from) ? to : triple.getObject();
+        if ((subject == triple.getSubject()) && (object == triple.getObject())) {
+            return triple;
+        }
+        return new TripleImpl(subject, triple.getPredicate(), object);
+    }
+
+    private static class Entry {
+
+        final long generation;
+        final IRI viewUri;
+        final List<Triple> triples;
+
+        Entry(long generation, IRI viewUri, List<Triple> triples) {
+            this.generation = generation;
+            this.viewUri = viewUri;
+            this.triples = triples;
+        }
+    }
+
+    /**
+     * The normalized form of a query.
+     */
+    private static class Key {
+
+        private final IRI contentStoreUri;
+        private final Set<IRI> subjects;
+        private final Set<IRI> types;
+        private final Set<String> searchs;
+        private final Integer items;
+        private final Integer offset;
+        private final Integer maxFacets;
+        private final boolean withContent;
+        private final String cursor;
+        private final boolean approximateFacets;
+        private final int hash;
+
+        Key(Query query) {
+            contentStoreUri = query.getContentStoreUri();
+            subjects = toSet(query.getSubjects());
+            types = toSet(query.getTypes());
+            searchs = toSet(query.getSearchs());
+            items = query.getItems();
+            offset = query.getOffset();
+            maxFacets = query.getMaxFacets();
+            withContent = query.isWithContent();
+            cursor = query.getCursor();
+            approximateFacets = query.isApproximateFacets();
+            int h = contentStoreUri.hashCode();
+            h = 31 * h + subjects.hashCode();
+            h = 31 * h + types.hashCode();
+            h = 31 * h + searchs.hashCode();
+            h = 31 * h + (items == null ? 0 : items.hashCode());
+            h = 31 * h + (offset == null ? 0 : offset.hashCode());
+            h = 31 * h + (maxFacets == null ? 0 : maxFacets.hashCode());
+            h = 31 * h + (cursor == null ? 0 : cursor.hashCode());
+            h = 31 * h + (approximateFacets ? 1 : 0);
+            hash = 31 * h + (withContent ? 1 : 0);
+        }
+
+        private static <T> Set<T> toSet(Collection<T> collection) {
+            if (collection == null) {
+                return Collections.emptySet();
+            }
+            return new HashSet<T>(collection);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return (hash == other.hash)
+                    && contentStoreUri.equals(other.contentStoreUri)
+                    && subjects.equals(other.subjects)
+                    && types.equals(other.types)
+                    && searchs.equals(other.searchs)
+                    && equal(items, other.items)
+                    && equal(offset, other.offset)
+                    && equal(maxFacets, other.maxFacets)
+                    && equal(cursor, other.cursor)
+                    && (approximateFacets == other.approximateFacets)
+                    && (withContent == other.withContent);
+        }
+
+        private static boolean equal(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+}
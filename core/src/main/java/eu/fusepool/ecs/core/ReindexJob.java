@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import eu.fusepool.ecs.ontologies.ECS;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import org.apache.clerezza.commons.rdf.Graph;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.rdf.core.LiteralFactory;
+import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.DCTERMS;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.clerezza.rdf.ontologies.SIOC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-indexes content items in the background. The index is updated in place
+ * one item at a time, so queries keep getting the previous entry of an item
+ * until its new entry replaces it.
+ *
+ * An item is re-indexed by removing and re-adding one of its indexed
+ * properties other than the type, which causes the index to update the entry
+ * of the item rather than to remove it. Only items without content and
+ * subjects are touched by their type. As the filter index drops the removed
+ * values, every touched item is added to it again.
+ *
+ * The index updates entries on its own thread, so the items are touched by a
+ * single thread in the order of their IRIs, a chunk per write lock. After
+ * each chunk the IRI up to which all items have been processed is saved, a
+ * later job can resume from there.
+ *
+ * @author Reto
+ */
+class ReindexJob {
+
+    private static final Logger log = LoggerFactory.getLogger(ReindexJob.class);
+    private static final int CHUNK_SIZE = 100;
+    private final Graph contentGraph;
+    private final FilterIndex filterIndex;
+    private final File cursorFile;
+    private final List<IRI> items;
+    private final AtomicLong processed = new AtomicLong();
+    private volatile boolean running = false;
+    private volatile boolean cancelled = false;
+    private volatile long startTime;
+
+    /**
+     * Creates a job for the content items in the content graph.
+     *
+     * @param contentGraph the graph with the content items
+     * @param filterIndex the index the touched items are added to again
+     * @param cursorFile the file in which the progress is saved
+     * @param resume if true items up to the saved cursor are skipped
+     * @param since if not null only items modified since then are re-indexed
+     */
+    ReindexJob(Graph contentGraph, FilterIndex filterIndex, File cursorFile,
+            boolean resume, Date since) throws IOException {
+        this.contentGraph = contentGraph;
+        this.filterIndex = filterIndex;
+        this.cursorFile = cursorFile;
+        final String cursor = resume ? readCursor() : null;
+        items = getItems(since, cursor);
+    }
+
+    /**
+     * Starts the job in the background.
+     */
+    void start() {
+        startTime = System.currentTimeMillis();
+        log.info("Re-indexing " + items.size() + " items");
+        running = true;
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    processChunks();
+                } catch (RuntimeException ex) {
+                    log.error("Re-indexing failed", ex);
+                    cancelled = true;
+                } finally {
+                    running = false;
+                    finished();
+                }
+            }
+        }, "ecs-reindex");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the job after the chunk being processed, it can later be
+     * resumed.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return a human readable description of the progress
+     */
+    String getProgress() {
+        final long done = processed.get();
+        final int total = items.size();
+        final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        final double itemsPerSecond = done * 1000d / elapsed;
+        final StringBuilder result = new StringBuilder();
+        result.append(isRunning() ? (cancelled ? "stopping" : "running")
+                : (done == total ? "completed" : "stopped"));
+        result.append('\n');
+        result.append("processed: ").append(done).append('/').append(total).append('\n');
+        result.append("items/sec: ").append(String.format("%.1f", itemsPerSecond)).append('\n');
+        if (isRunning() && (itemsPerSecond > 0)) {
+            result.append("eta (sec): ").append(Math.round((total - done) / itemsPerSecond))
+                    .append('\n');
+        }
+        return result.toString();
+    }
+
+    private void processChunks() {
+        for (int start = 0; !cancelled && (start < items.size()); start += CHUNK_SIZE) {
+            final int end = Math.min(start + CHUNK_SIZE, items.size());
+            final Lock l = contentGraph.getLock().writeLock();
+            l.lock();
+            try {
+                for (int i = start; i < end; i++) {
+                    touch(items.get(i));
+                }
+            } finally {
+                l.unlock();
+            }
+            processed.addAndGet(end - start);
+            writeCursor(items.get(end - 1).getUnicodeString());
+        }
+    }
+
+    /**
+     * Removes and re-adds a triple of the item and adds the item to the
+     * filter index again, the write lock must be held.
+     */
+    private void touch(IRI item) {
+        Triple triple = getFirst(contentGraph.filter(item, SIOC.content, null));
+        if (triple == null) {
+            triple = getFirst(contentGraph.filter(item, DC.subject, null));
+        }
+        if (triple == null) {
+            triple = new TripleImpl(item, RDF.type, ECS.ContentItem);
+        }
+        if (contentGraph.remove(triple)) {
+            contentGraph.add(triple);
+            filterIndex.add(item, contentGraph);
+        }
+    }
+
+    private static Triple getFirst(Iterator<Triple> triples) {
+        return triples.hasNext() ? triples.next() : null;
+    }
+
+    private void finished() {
+        log.info("Re-indexing " + (cancelled ? "stopped" : "completed") + " after "
+                + processed.get() + " items");
+        if (!cancelled) {
+            cursorFile.delete();
+        }
+    }
+
+    private List<IRI> getItems(Date since, String cursor) {
+        final List<IRI> result = new ArrayList<IRI>();
+        final Lock l = contentGraph.getLock().readLock();
+        l.lock();
+        try {
+            final Iterator<Triple> typeTriples = contentGraph.filter(null, RDF.type, ECS.ContentItem);
+            while (typeTriples.hasNext()) {
+                final IRI item = (IRI) typeTriples.next().getSubject();
+                if ((cursor != null) && (item.getUnicodeString().compareTo(cursor) <= 0)) {
+                    continue;
+                }
+                if ((since != null) && !isModifiedSince(item, since)) {
+                    continue;
+                }
+                result.add(item);
+            }
+        } finally {
+            l.unlock();
+        }
+        Collections.sort(result, new Comparator<IRI>() {
+            public int compare(IRI o1, IRI o2) {
+                return o1.getUnicodeString().compareTo(o2.getUnicodeString());
+            }
+        });
+        return result;
+    }
+
+    private boolean isModifiedSince(IRI item, Date since) {
+        final Iterator<Triple> modifiedTriples = contentGraph.filter(item, DCTERMS.modified, null);
+        while (modifiedTriples.hasNext()) {
+            final RDFTerm modified = modifiedTriples.next().getObject();
+            if (modified instanceof Literal) {
+                try {
+                    final Date date = LiteralFactory.getInstance().createObject(Date.class,
+                            (Literal) modified);
+                    if (!date.before(since)) {
+                        return true;
+                    }
+                } catch (RuntimeException ex) {
+                    log.debug("Ignoring invalid modification date of " + item, ex);
+                }
+            }
+        }
+        return false;
+    }
+
+    private String readCursor() throws IOException {
+        if (!cursorFile.exists()) {
+            return null;
+        }
+        final InputStream in = new FileInputStream(cursorFile);
+        try {
+            final byte[] bytes = new byte[(int) cursorFile.length()];
+            int pos = 0;
+            int read;
+            while ((pos < bytes.length) && ((read = in.read(bytes, pos, bytes.length - pos)) != -1)) {
+                pos += read;
+            }
+            return new String(bytes, 0, pos, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCursor(String cursor) {
+        try {
+            final OutputStream out = new FileOutputStream(cursorFile);
+            try {
+                out.write(cursor.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            log.warn("Could not save re-indexing cursor", ex);
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative integers in the style of Roaring
+ * bitmaps. The values are partitioned by their upper 16 bits into
+ * containers, a container with few values stores them as sorted array,
+ * otherwise as bitmap of 2^16 bits.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Reto
+ */
+class RoaringBitmap {
+
+    /**
+     * Containers with more values are stored as bitmap
+     */
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    void add(int value) {
+        final char high = (char) (value >>> 16);
+        final int position = indexOf(high);
+        if (position >= 0) {
+            containers[position] = containers[position].add((char) value);
+        } else {
+            insert(-position - 1, high, new ArrayContainer().add((char) value));
+        }
+    }
+
+    void remove(int value) {
+        final int position = indexOf((char) (value >>> 16));
+        if (position >= 0) {
+            final Container container = containers[position];
+            container.remove((char) value);
+            if (container.cardinality == 0) {
+                System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+                System.arraycopy(containers, position + 1, containers, position,
+                        size - position - 1);
+                size--;
+                containers[size] = null;
+            }
+        }
+    }
+
+    boolean contains(int value) {
+        final int position = indexOf((char) (value >>> 16));
+        return (position >= 0) && containers[position].contains((char) value);
+    }
+
+    int getCardinality() {
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            result += containers[i].cardinality;
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap with the values contained in this and the other
+     * bitmap
+     */
+    RoaringBitmap and(RoaringBitmap other) {
+        final RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while ((i < size) && (j < other.size)) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                final Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality > 0) {
+                    result.insert(result.size, keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of values contained in this and the other bitmap
+     */
+    int andCardinality(RoaringBitmap other) {
+        int result = 0;
+        int i = 0, j = 0;
+        while ((i < size) && (j < other.size)) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result += containers[i].andCardinality(other.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap with the same values
+     */
+    RoaringBitmap copy() {
+        final RoaringBitmap result = new RoaringBitmap();
+        result.keys = Arrays.copyOf(keys, Math.max(size, 1));
+        result.containers = new Container[result.keys.length];
+        for (int i = 0; i < size; i++) {
+            result.containers[i] = containers[i].copy();
+        }
+        result.size = size;
+        return result;
+    }
+
+    /**
+     * Returns the values in ascending order from position <code>from</code>
+     * (inclusive) to position <code>to</code> (exclusive), containers before
+     * the start position are skipped without visiting their values.
+     */
+    int[] toArray(int from, int to) {
+        final int cardinality = getCardinality();
+        to = Math.min(to, cardinality);
+        if (from >= to) {
+            return new int[0];
+        }
+        final int[] result = new int[to - from];
+        int position = 0;
+        int filled = 0;
+        for (int i = 0; (i < size) && (filled < result.length); i++) {
+            final Container container = containers[i];
+            if (position + container.cardinality <= from) {
+                position += container.cardinality;
+                continue;
+            }
+            final int[] values = container.toArray(keys[i] << 16);
+            for (int v = Math.max(0, from - position); (v < values.length)
+                    && (filled < result.length); v++) {
+                result[filled++] = values[v];
+            }
+            position += container.cardinality;
+        }
+        return result;
+    }
+
+    int[] toArray() {
+        return toArray(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns up to <code>count</code> values greater than
+     * <code>after</code> and lower than <code>limit</code> in ascending
+     * order. Containers and values before <code>after</code> are skipped
+     * without being visited.
+     */
+    int[] toArrayAfter(int after, int limit, int count) {
+        final int[] result = new int[count];
+        int filled = 0;
+        final int start = Math.max(after + 1, 0);
+        int position = indexOf((char) (start >>> 16));
+        if (position < 0) {
+            position = -position - 1;
+        }
+        for (int i = position; (i < size) && (filled < count); i++) {
+            final int high = keys[i] << 16;
+            if (high >= limit) {
+                break;
+            }
+            final char from = high < start ? (char) start : 0;
+            filled = containers[i].fill(high, from, limit, result, filled);
+        }
+        return filled == count ? result : Arrays.copyOf(result, filled);
+    }
+
+    /**
+     * Returns <code>count</code> values evenly spaced by their position,
+     * or all values if there are not more.
+     */
+    int[] sample(int count) {
+        final int cardinality = getCardinality();
+        if (cardinality <= count) {
+            return toArray();
+        }
+        final int[] result = new int[count];
+        for (int k = 0; k < count; k++) {
+            result[k] = (int) ((long) k * cardinality / count);
+        }
+        //the positions in result are replaced by the values at them
+        int position = 0;
+        int k = 0;
+        for (int i = 0; (i < size) && (k < count); i++) {
+            final int end = position + containers[i].cardinality;
+            int kEnd = k;
+            while ((kEnd < count) && (result[kEnd] < end)) {
+                kEnd++;
+            }
+            if (kEnd > k) {
+                containers[i].select(keys[i] << 16, position, result, k, kEnd);
+                k = kEnd;
+            }
+            position = end;
+        }
+        return result;
+    }
+
+    private int indexOf(char high) {
+        int low = 0;
+        int upper = size - 1;
+        while (low <= upper) {
+            final int middle = (low + upper) >>> 1;
+            if (keys[middle] < high) {
+                low = middle + 1;
+            } else if (keys[middle] > high) {
+                upper = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insert(int position, char high, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, position, keys, position + 1, size - position);
+        System.arraycopy(containers, position, containers, position + 1, size - position);
+        keys[position] = high;
+        containers[position] = container;
+        size++;
+    }
+
+    private static abstract class Container {
+
+        int cardinality = 0;
+
+        /**
+         * @return this or a container of another type with the value added
+         */
+        abstract Container add(char value);
+
+        abstract void remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract Container and(Container other);
+
+        abstract int andCardinality(Container other);
+
+        abstract Container copy();
+
+        /**
+         * @return the values in ascending order, or-ed with high
+         */
+        abstract int[] toArray(int high);
+
+        /**
+         * Adds the values from <code>from</code> or-ed with high that are
+         * lower than limit to the result, until it is full.
+         *
+         * @return the number of values in the result
+         */
+        abstract int fill(int high, char from, int limit, int[] result, int filled);
+
+        /**
+         * Replaces the ascending positions in result from <code>from</code>
+         * to <code>to</code>, counted from the start position of this
+         * container, with the values at these positions or-ed with high.
+         */
+        abstract void select(int high, int start, int[] result, int from, int to);
+    }
+
+    private static class ArrayContainer extends Container {
+
+        private char[] values = new char[4];
+
+        @Override
+        Container add(char value) {
+            final int position = Arrays.binarySearch(values, 0, cardinality, value);
+            if (position >= 0) {
+                return this;
+            }
+            if (cardinality == MAX_ARRAY_SIZE) {
+                return toBitmapContainer().add(value);
+            }
+            final int insertion = -position - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(cardinality * 2, MAX_ARRAY_SIZE));
+            }
+            System.arraycopy(values, insertion, values, insertion + 1, cardinality - insertion);
+            values[insertion] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        void remove(char value) {
+            final int position = Arrays.binarySearch(values, 0, cardinality, value);
+            if (position >= 0) {
+                System.arraycopy(values, position + 1, values, position,
+                        cardinality - position - 1);
+                cardinality--;
+            }
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container and(Container other) {
+            final ArrayContainer result = new ArrayContainer();
+            result.values = new char[Math.max(cardinality, 1)];
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer otherArray = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while ((i < cardinality) && (j < otherArray.cardinality)) {
+                    if (values[i] < otherArray.values[j]) {
+                        i++;
+                    } else if (values[i] > otherArray.values[j]) {
+                        j++;
+                    } else {
+                        result.values[result.cardinality++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        result.values[result.cardinality++] = values[i];
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            int result = 0;
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer otherArray = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while ((i < cardinality) && (j < otherArray.cardinality)) {
+                    if (values[i] < otherArray.values[j]) {
+                        i++;
+                    } else if (values[i] > otherArray.values[j]) {
+                        j++;
+                    } else {
+                        result++;
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        result++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            final ArrayContainer result = new ArrayContainer();
+            result.values = Arrays.copyOf(values, Math.max(cardinality, 1));
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        @Override
+        int[] toArray(int high) {
+            final int[] result = new int[cardinality];
+            for (int i = 0; i < cardinality; i++) {
+                result[i] = high | values[i];
+            }
+            return result;
+        }
+
+        @Override
+        int fill(int high, char from, int limit, int[] result, int filled) {
+            int i = Arrays.binarySearch(values, 0, cardinality, from);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (; (i < cardinality) && (filled < result.length); i++) {
+                final int value = high | values[i];
+                if (value >= limit) {
+                    break;
+                }
+                result[filled++] = value;
+            }
+            return filled;
+        }
+
+        @Override
+        void select(int high, int start, int[] result, int from, int to) {
+            for (int k = from; k < to; k++) {
+                result[k] = high | values[result[k] - start];
+            }
+        }
+
+        private BitmapContainer toBitmapContainer() {
+            final BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                result.add(values[i]);
+            }
+            return result;
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+
+        private final long[] words;
+
+        BitmapContainer() {
+            this(new long[1 << 10]);
+        }
+
+        private BitmapContainer(long[] words) {
+            this.words = words;
+        }
+
+        @Override
+        Container add(char value) {
+            final long word = words[value >>> 6];
+            final long updated = word | (1L << value);
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        void remove(char value) {
+            final long word = words[value >>> 6];
+            final long updated = word & ~(1L << value);
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality--;
+            }
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            final long[] otherWords = ((BitmapContainer) other).words;
+            final BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] = words[i] & otherWords[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            if (result.cardinality > MAX_ARRAY_SIZE) {
+                return result;
+            }
+            final ArrayContainer array = new ArrayContainer();
+            array.values = new char[Math.max(result.cardinality, 1)];
+            for (int value : result.toArray(0)) {
+                array.values[array.cardinality++] = (char) value;
+            }
+            return array;
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.andCardinality(this);
+            }
+            final long[] otherWords = ((BitmapContainer) other).words;
+            int result = 0;
+            for (int i = 0; i < words.length; i++) {
+                result += Long.bitCount(words[i] & otherWords[i]);
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            final BitmapContainer result = new BitmapContainer(words.clone());
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        @Override
+        int[] toArray(int high) {
+            final int[] result = new int[cardinality];
+            int position = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    result[position++] = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        int fill(int high, char from, int limit, int[] result, int filled) {
+            //the bits below from are cleared in the first word
+            long word = words[from >>> 6] & (-1L << from);
+            for (int i = from >>> 6; i < words.length; ) {
+                if (word == 0) {
+                    if (++i < words.length) {
+                        word = words[i];
+                    }
+                    continue;
+                }
+                final int value = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+                if ((value >= limit) || (filled == result.length)) {
+                    return filled;
+                }
+                result[filled++] = value;
+                word &= word - 1;
+            }
+            return filled;
+        }
+
+        @Override
+        void select(int high, int start, int[] result, int from, int to) {
+            int position = start;
+            int k = from;
+            for (int i = 0; (i < words.length) && (k < to); i++) {
+                final int bits = Long.bitCount(words[i]);
+                if (position + bits <= result[k]) {
+                    position += bits;
+                    continue;
+                }
+                long word = words[i];
+                while ((word != 0) && (k < to)) {
+                    if (position == result[k]) {
+                        result[k++] = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+                    }
+                    word &= word - 1;
+                    position++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Stores for every content item the passages of its text in which its
+ * terms first occur, so that the snippets for a search are read from this
+ * index rather than cut from the text, the text is only needed by
+ * <code>put</code>.
+ *
+ * The text is divided into passages of PREVIEW_LENGTH characters, each
+ * starting half a passage after the previous one. For every suffix of every
+ * term the passage of the first occurrence of a term with that suffix is
+ * stored, sorted by suffix. As with the full-text search a search string
+ * thus matches anywhere in a term, and the terms matching it are found
+ * with a binary search.
+ *
+ * The files are spread over two levels of directories named by the
+ * beginning of the hash of the IRI of the content item.
+ *
+ * @author Reto
+ */
+class SnippetIndex {
+
+    /**
+     * Longer terms (such as encoded data) are not stored
+     */
+    private static final int MAX_TERM_LENGTH = 100;
+    /**
+     * The maximum number of suffixes starting with a search term that are
+     * looked at for its first occurrence
+     */
+    private static final int MAX_PREFIXED_TERMS = 100;
+    private static final int PASSAGE_LENGTH = ContentStoreImpl.PREVIEW_LENGTH;
+    private static final int PASSAGE_STEP = PASSAGE_LENGTH / 2;
+    private static final String SNIPPETS_SUFFIX = ".snippets";
+    private static final String ELLIPSIS = "...";
+    private final File directory;
+
+    SnippetIndex(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Could not create " + directory);
+        }
+    }
+
+    /**
+     * Stores the passages of the text of a content item. The file starts
+     * with the number of suffixes, the number of passages, the length of the
+     * suffix entries and the positions of the suffix and of the passage
+     * entries. The suffix entries with a suffix and the ordinal of its
+     * passage follow in the order of the suffixes, then the passage entries
+     * with the number of the passage and its text.
+     */
+    void put(IRI contentItem, String text) throws IOException {
+        final Map<String, Integer> passageNumbers = new TreeMap<String, Integer>();
+        final int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            final boolean termChar = (i < length) && Character.isLetterOrDigit(text.charAt(i));
+            if (termChar && (start == -1)) {
+                start = i;
+            } else if (!termChar && (start != -1)) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    final String term = text.substring(start, i).toLowerCase();
+                    final int passageNumber = getPassageNumber(start);
+                    for (int s = 0; s < term.length(); s++) {
+                        final String suffix = term.substring(s);
+                        if (!passageNumbers.containsKey(suffix)) {
+                            passageNumbers.put(suffix, passageNumber);
+                        }
+                    }
+                }
+                start = -1;
+            }
+        }
+        final List<Integer> passages = new ArrayList<Integer>(
+                new TreeSet<Integer>(passageNumbers.values()));
+        final Map<Integer, Integer> passageOrdinals = new TreeMap<Integer, Integer>();
+        for (int ordinal = 0; ordinal < passages.size(); ordinal++) {
+            passageOrdinals.put(passages.get(ordinal), ordinal);
+        }
+        final int[] suffixPositions = new int[passageNumbers.size()];
+        final ByteArrayOutputStream suffixBytes = new ByteArrayOutputStream();
+        final DataOutputStream suffixEntries = new DataOutputStream(suffixBytes);
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : passageNumbers.entrySet()) {
+            suffixPositions[i++] = suffixEntries.size();
+            suffixEntries.writeUTF(entry.getKey());
+            suffixEntries.writeInt(passageOrdinals.get(entry.getValue()));
+        }
+        suffixEntries.close();
+        final int[] passagePositions = new int[passages.size()];
+        final ByteArrayOutputStream passageBytes = new ByteArrayOutputStream();
+        final DataOutputStream passageEntries = new DataOutputStream(passageBytes);
+        i = 0;
+        for (int passageNumber : passages) {
+            passagePositions[i++] = passageEntries.size();
+            passageEntries.writeInt(passageNumber);
+            passageEntries.writeUTF(getPassage(text, passageNumber));
+        }
+        passageEntries.close();
+        final File file = getFile(contentItem);
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(suffixPositions.length);
+            out.writeInt(passagePositions.length);
+            out.writeInt(suffixBytes.size());
+            for (int position : suffixPositions) {
+                out.writeInt(position);
+            }
+            for (int position : passagePositions) {
+                out.writeInt(position);
+            }
+            suffixBytes.writeTo(out);
+            passageBytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes the passages stored for a content item.
+     */
+    void remove(IRI contentItem) {
+        getFile(contentItem).delete();
+    }
+
+    /**
+     * Returns passages of the text around the matches of the search strings.
+     * Wildcards in search strings are ignored, passages are located by the
+     * longest term in a search string which is matched anywhere in the
+     * terms of the text.
+     *
+     * @param contentItem the content item
+     * @param searchs the search strings
+     * @param maxSnippets the maximum number of passages returned
+     * @return the passages in the order of the text, an empty list if there
+     * are none or the content item isn't in this index
+     */
+    List<String> getSnippets(IRI contentItem, Collection<String> searchs, int maxSnippets)
+            throws IOException {
+        final List<String> result = new ArrayList<String>();
+        final File file = getFile(contentItem);
+        if (!file.isFile()) {
+            return result;
+        }
+        final Set<String> searchTerms = new HashSet<String>(searchs.size());
+        for (String search : searchs) {
+            final String searchTerm = getLongestTerm(search.toLowerCase());
+            if (searchTerm.length() > 0) {
+                searchTerms.add(searchTerm);
+            }
+        }
+        if (searchTerms.isEmpty()) {
+            return result;
+        }
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final int suffixCount = in.readInt();
+            final int passageCount = in.readInt();
+            final long suffixesStart = 12L + 4L * suffixCount + 4L * passageCount;
+            final long passagesStart = suffixesStart + in.readInt();
+            final Set<Integer> ordinals = new TreeSet<Integer>();
+            for (String searchTerm : searchTerms) {
+                final int ordinal = findFirstPassage(in, suffixCount, suffixesStart, searchTerm);
+                if (ordinal != -1) {
+                    ordinals.add(ordinal);
+                }
+            }
+            //passages are in the order of their numbers, overlapping ones skipped
+            int previousNumber = -2;
+            for (int ordinal : ordinals) {
+                if (result.size() == maxSnippets) {
+                    break;
+                }
+                in.seek(12L + 4L * suffixCount + 4L * ordinal);
+                in.seek(passagesStart + in.readInt());
+                final int passageNumber = in.readInt();
+                if (passageNumber - previousNumber < 2) {
+                    continue;
+                }
+                result.add(in.readUTF());
+                previousNumber = passageNumber;
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return the ordinal of the first passage with a suffix starting with
+     * the search term or -1
+     */
+    private static int findFirstPassage(RandomAccessFile in, int suffixCount,
+            long suffixesStart, String searchTerm) throws IOException {
+        //the first suffix not before the search term
+        int low = 0;
+        int high = suffixCount;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            seekSuffix(in, suffixesStart, middle);
+            if (in.readUTF().compareTo(searchTerm) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int result = -1;
+        final int end = Math.min(suffixCount, low + MAX_PREFIXED_TERMS);
+        for (int t = low; t < end; t++) {
+            seekSuffix(in, suffixesStart, t);
+            if (!in.readUTF().startsWith(searchTerm)) {
+                break;
+            }
+            final int ordinal = in.readInt();
+            if ((result == -1) || (ordinal < result)) {
+                result = ordinal;
+            }
+        }
+        return result;
+    }
+
+    private static void seekSuffix(RandomAccessFile in, long suffixesStart, int index)
+            throws IOException {
+        in.seek(12L + 4L * index);
+        in.seek(suffixesStart + in.readInt());
+    }
+
+    /**
+     * @return the number of the passage in which a term at the specified
+     * offset is preceded by at least a third of a passage
+     */
+    private static int getPassageNumber(int offset) {
+        return Math.max(0, offset - PASSAGE_LENGTH / 3) / PASSAGE_STEP;
+    }
+
+    private static String getPassage(String text, int passageNumber) {
+        final int textLength = text.length();
+        final int start = passageNumber * PASSAGE_STEP;
+        final int end = Math.min(textLength, start + PASSAGE_LENGTH);
+        return (start > 0 ? ELLIPSIS : "")
+                + substring(text, start, end).replace('\n', ' ').replace("\r", "")
+                + (end < textLength ? ELLIPSIS : "");
+    }
+
+    private static String substring(String text, int start, int end) {
+        String result = text.substring(start, end);
+        //don't start or end with half a surrogate pair
+        if ((result.length() > 0) && Character.isLowSurrogate(result.charAt(0))) {
+            result = result.substring(1);
+        }
+        if ((result.length() > 0) && Character.isHighSurrogate(result.charAt(result.length() - 1))) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    private static String getLongestTerm(String search) {
+        String longest = "";
+        for (String term : search.split("[^\\p{L}\\p{Nd}]+")) {
+            if (term.length() > longest.length()) {
+                longest = term;
+            }
+        }
+        return longest;
+    }
+
+    private File getFile(IRI contentItem) {
+        final String baseName = getBaseName(contentItem);
+        return new File(new File(new File(directory, baseName.substring(0, 2)),
+                baseName.substring(2, 4)), baseName + SNIPPETS_SUFFIX);
+    }
+
+    private static String getBaseName(IRI contentItem) {
+        try {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new String(Hex.encodeHex(md5.digest(
+                    contentItem.getUnicodeString().getBytes("UTF-8"))));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
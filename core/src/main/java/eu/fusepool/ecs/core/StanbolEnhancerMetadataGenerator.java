@@ -17,29 +17,59 @@ package eu.fusepool.ecs.core;
 
 import eu.fusepool.ecs.ontologies.ECS;
 import java.io.IOException;
+import java.security.AccessController;
 import java.security.Permission;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import javax.ws.rs.core.MediaType;
 import org.apache.clerezza.commons.rdf.BlankNode;
 import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
 import org.apache.clerezza.commons.rdf.Graph;
 import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
 import org.apache.clerezza.commons.rdf.RDFTerm;
 import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.WatchableGraph;
+import org.apache.clerezza.commons.rdf.event.FilterTriple;
+import org.apache.clerezza.commons.rdf.event.GraphEvent;
+import org.apache.clerezza.commons.rdf.event.GraphListener;
+import org.apache.clerezza.commons.rdf.event.RemoveEvent;
+import org.apache.clerezza.commons.rdf.impl.utils.PlainLiteralImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.TripleImpl;
+import org.apache.clerezza.commons.rdf.impl.utils.simple.SimpleGraph;
+import org.apache.clerezza.platform.content.DiscobitsHandler;
+import org.apache.clerezza.platform.graphprovider.content.ContentGraphProvider;
+import org.apache.clerezza.rdf.core.LiteralFactory;
 import org.apache.clerezza.rdf.core.access.EntityAlreadyExistsException;
 import org.apache.clerezza.rdf.core.access.TcManager;
 import org.apache.clerezza.rdf.core.access.security.TcAccessController;
 import org.apache.clerezza.rdf.core.access.security.TcPermission;
 import org.apache.clerezza.rdf.metadata.MetaDataGenerator;
 import org.apache.clerezza.rdf.ontologies.DC;
+import org.apache.clerezza.rdf.ontologies.DCTERMS;
+import org.apache.clerezza.rdf.ontologies.DISCOBITS;
 import org.apache.clerezza.rdf.ontologies.RDF;
 import org.apache.clerezza.rdf.ontologies.SIOC;
 import org.apache.clerezza.rdf.utils.GraphNode;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.stanbol.enhancer.servicesapi.Blob;
@@ -54,18 +84,85 @@ import org.apache.stanbol.enhancer.servicesapi.helper.ContentItemHelper;
 import org.apache.stanbol.enhancer.servicesapi.impl.ByteArraySource;
 import org.apache.stanbol.enhancer.servicesapi.rdf.Properties;
 import org.apache.stanbol.enhancer.servicesapi.rdf.TechnicalClasses;
-import org.apache.stanbol.entityhub.model.clerezza.RdfValueFactory;
-import org.apache.stanbol.entityhub.servicesapi.model.Entity;
-import org.apache.stanbol.entityhub.servicesapi.model.Representation;
-import org.apache.stanbol.entityhub.servicesapi.site.SiteManager;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.LoggerFactory;
 
 @Component
-@Service(MetaDataGenerator.class)
+@Service({MetaDataGenerator.class, StanbolEnhancerMetadataGenerator.class})
 public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
 
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(StanbolEnhancerMetadataGenerator.class);
+    /**
+     * The number of threads enhancing asynchronously ingested content
+     */
+    @Property(intValue = 4)
+    public static final String ENHANCEMENT_THREADS = "enhancementThreads";
+    /**
+     * The number of asynchronously ingested content items that may wait for
+     * a free enhancement thread, when exceeded new asynchronous requests are
+     * rejected
+     */
+    @Property(intValue = 100)
+    public static final String ENHANCEMENT_QUEUE_CAPACITY = "enhancementQueueCapacity";
+    /**
+     * The number of leading sentences of the text of a content item that are
+     * stored as its snippets
+     */
+    @Property(intValue = 0)
+    public static final String LEAD_SENTENCES = "leadSentences";
+    /**
+     * How much of the context an entity has in the enhancement results is
+     * written to the content graph: "direct" for the properties of the
+     * entity only, "cbd" for its concise bounded description or "full" for
+     * all triples in which it appears
+     */
+    @Property(value = "full", options = {
+        @PropertyOption(name = "direct", value = "Direct properties"),
+        @PropertyOption(name = "cbd", value = "Concise bounded description"),
+        @PropertyOption(name = "full", value = "Full context")})
+    public static final String ENTITY_CONTEXT = "entityContext";
+    /**
+     * Maps media types and sizes to the enhancement chain used, entries have
+     * the form "type/subtype[,maxBytes]=chain", the first matching entry 
+     * applies and content not matched by any entry is enhanced with the 
+     * "default" chain
+     */
+    @Property(value = {"*/*=default"}, cardinality = Integer.MAX_VALUE)
+    public static final String CHAIN_MAPPINGS = "chainMappings";
+    /**
+     * Limits the number of concurrent enhancements with a chain, entries 
+     * have the form "chain=maxConcurrent"
+     */
+    @Property(value = {}, cardinality = Integer.MAX_VALUE)
+    public static final String CHAIN_LIMITS = "chainLimits";
+    /**
+     * Enhancements with a confidence below this value are not kept, 0 keeps
+     * all enhancements
+     */
+    @Property(doubleValue = 0)
+    public static final String MIN_CONFIDENCE = "enhancementMinConfidence";
+    /**
+     * If true text annotations to which no entity annotation relates are
+     * not kept
+     */
+    @Property(boolValue = false)
+    public static final String DROP_UNREFERENCED_TEXT_ANNOTATIONS = "dropUnreferencedTextAnnotations";
+    /**
+     * The number of milliseconds the compaction of the enhancements graph
+     * pauses after every chunk of content items
+     */
+    @Property(intValue = 100)
+    public static final String COMPACTION_PAUSE = "compactionPause";
+    /**
+     * Blank nodes nested deeper in a description don't affect its
+     * fingerprint
+     */
+    private static final int MAX_BLANK_NODE_DEPTH = 8;
+    
+    enum EntityContext {
+
+        DIRECT, CBD, FULL
+    }
     /**
      * This service allows accessing and creating persistent triple collections
      */
@@ -82,18 +179,124 @@ public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
     private ContentItemFactory contentItemFactory;
     
     /**
-     * This service allows to get entities from configures sites
+     * Provides the descriptions of entities from the configured sites
      */
     @Reference
-    private SiteManager siteManager;
+    private EntityDescriptionCache entityDescriptionCache;
+    
+    @Reference
+    private ContentGraphProvider contentGraphProvider;
    
     /**
      * The graph in which the enancer generated enhanceents are stored
      */
     final static IRI ENHANCEMENTS_GRAPH = new IRI("urn:x-localhost:/ecs-collected-enhancements.graph");
     
+    private EnhancementQueue enhancementQueue;
+    
+    private int leadSentences;
+    
+    private SnippetIndex snippetIndex;
+    
+    private EntityContext entityContext;
+    
+    private EnhancementRetention retention;
+    
+    private ChainSelector chainSelector;
+    
+    private int compactionPause;
+    
+    /**
+     * The current or last compaction, guarded by this
+     */
+    private CompactionJob compactionJob;
+    
+    /**
+     * Incremented whenever content or enhancements are added, removed or
+     * compacted
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private final GraphListener generationIncrementer = new GraphListener() {
+        public void graphChanged(List<GraphEvent> events) {
+            generation.incrementAndGet();
+        }
+    };
+    /**
+     * Deletes the term offsets of a content when its discobit is removed
+     */
+    private final GraphListener snippetRemover = new GraphListener() {
+        public void graphChanged(List<GraphEvent> events) {
+            for (GraphEvent event : events) {
+                final BlankNodeOrIRI subject = event.getTriple().getSubject();
+                if ((event instanceof RemoveEvent) && (subject instanceof IRI)) {
+                    snippetIndex.remove((IRI) subject);
+                }
+            }
+        }
+    };
+    /**
+     * Removes the removed subjects and types of content items from the
+     * filter index, and the content items no longer typed as such
+     */
+    private final GraphListener filterIndexUpdater = new GraphListener() {
+        public void graphChanged(List<GraphEvent> events) {
+            for (GraphEvent event : events) {
+                final Triple triple = event.getTriple();
+                if (!(event instanceof RemoveEvent) || !(triple.getSubject() instanceof IRI)
+                        || !(triple.getObject() instanceof IRI)
+                        || !filterIndex.isIndexed(triple.getPredicate())) {
+                    continue;
+                }
+                final IRI subject = (IRI) triple.getSubject();
+                if (triple.getPredicate().equals(RDF.type)
+                        && triple.getObject().equals(ECS.ContentItem)) {
+                    filterIndex.remove(subject);
+                } else {
+                    filterIndex.remove(subject, triple.getPredicate(), (IRI) triple.getObject());
+                }
+            }
+        }
+    };
+    private final List<WatchableGraph> watchedGraphs = new ArrayList<WatchableGraph>();
+    /**
+     * The bitmaps of the content items by subject and type
+     */
+    private final FilterIndex filterIndex = new FilterIndex(DC.subject, RDF.type);
+    /**
+     * The durations of the stages of generating metadata by stage
+     */
+    private final Map<String, Timing> stageTimings = new LinkedHashMap<String, Timing>();
+    private final Timing enhancementTime = Timing.create(stageTimings, "total");
+    private final Timing chainTime = Timing.create(stageTimings, "chain");
+    private final Timing textTime = Timing.create(stageTimings, "text");
+    private final Timing entitiesTime = Timing.create(stageTimings, "entities");
+    private final Timing retentionTime = Timing.create(stageTimings, "retention");
+    private final Timing commitTime = Timing.create(stageTimings, "commit");
+    
+    /**
+     * When set the content passed to generate on the current thread is
+     * collected rather than enhanced right away.
+     */
+    private final ThreadLocal<Collection<EnhancementTask>> collector =
+            new ThreadLocal<Collection<EnhancementTask>>();
+    
     protected void activate(ComponentContext context) {
         log.info("Enhanced Content Store being activated");
+        chainSelector = new ChainSelector(
+                ConfigUtils.getStringArray(context, CHAIN_MAPPINGS, new String[]{"*/*=default"}),
+                ConfigUtils.getStringArray(context, CHAIN_LIMITS, new String[0]));
+        enhancementQueue = new EnhancementQueue(
+                ConfigUtils.getInt(context, ENHANCEMENT_THREADS, 4),
+                ConfigUtils.getInt(context, ENHANCEMENT_QUEUE_CAPACITY, 100),
+                chainSelector);
+        leadSentences = ConfigUtils.getInt(context, LEAD_SENTENCES, 0);
+        entityContext = EntityContext.valueOf(
+                ConfigUtils.getString(context, ENTITY_CONTEXT, "full").toUpperCase());
+        retention = new EnhancementRetention(
+                ConfigUtils.getDouble(context, MIN_CONFIDENCE, 0),
+                ConfigUtils.getBoolean(context, DROP_UNREFERENCED_TEXT_ANNOTATIONS, false));
+        compactionPause = ConfigUtils.getInt(context, COMPACTION_PAUSE, 100);
+        snippetIndex = new SnippetIndex(context.getBundleContext().getDataFile("snippets"));
         try {            
             tcManager.createGraph(ENHANCEMENTS_GRAPH);
             //now make sure everybody can read from the graph
@@ -105,7 +308,129 @@ public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
         } catch (EntityAlreadyExistsException ex) {
             log.debug("The graph for the request log already exists");
         }
+        final Graph contentGraph = contentGraphProvider.getContentGraph();
+        watch(contentGraph);
+        watch(getEnhancementGraph());
+        if (contentGraph instanceof WatchableGraph) {
+            ((WatchableGraph) contentGraph).addGraphListener(snippetRemover,
+                    new FilterTriple(null, DISCOBITS.mediaType, null));
+            ((WatchableGraph) contentGraph).addGraphListener(filterIndexUpdater,
+                    new FilterTriple(null, null, null));
+        } else {
+            log.warn("Content graph cannot be watched, removed content items "
+                    + "stay in the filter index until restart");
+        }
+    }
+    
+    /**
+     * Makes every change of the graph start a new generation.
+     */
+    private void watch(Graph graph) {
+        if (graph instanceof WatchableGraph) {
+            final WatchableGraph watchableGraph = (WatchableGraph) graph;
+            watchableGraph.addGraphListener(generationIncrementer,
+                    new FilterTriple(null, null, null));
+            watchedGraphs.add(watchableGraph);
+        } else {
+            log.warn("Graph cannot be watched, cached results are only "
+                    + "invalidated by new contents and enhancements");
+        }
+    }
+    
+    protected void deactivate(ComponentContext context) {
+        for (WatchableGraph watchedGraph : watchedGraphs) {
+            watchedGraph.removeGraphListener(generationIncrementer);
+            watchedGraph.removeGraphListener(snippetRemover);
+            watchedGraph.removeGraphListener(filterIndexUpdater);
+        }
+        watchedGraphs.clear();
+        synchronized (this) {
+            if (compactionJob != null) {
+                compactionJob.cancel();
+            }
+        }
+        enhancementQueue.shutdown();
+        enhancementQueue = null;
+    }
+    
+    /**
+     * Results computed from the content graph can be reused as long as this
+     * value doesn't change.
+     * 
+     * @return the current generation of the content
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+    
+    /**
+     * @return the index of the texts of the content items used to compute
+     * query dependent snippets
+     */
+    SnippetIndex getSnippetIndex() {
+        return snippetIndex;
+    }
+    
+    /**
+     * Starts compacting the enhancements graph in the background unless a
+     * compaction is already running.
+     * 
+     * @return the progress of the compaction
+     */
+    synchronized String startCompaction(Graph contentGraph) {
+        if ((compactionJob == null) || !compactionJob.isRunning()) {
+            compactionJob = new CompactionJob(getEnhancementGraph(), contentGraph,
+                    retention, compactionPause);
+            compactionJob.start();
+        }
+        return compactionJob.getProgress();
+    }
+    
+    /**
+     * @return the progress of the current or last compaction or null if
+     * none has been started
+     */
+    synchronized String getCompactionProgress() {
+        return compactionJob == null ? null : compactionJob.getProgress();
+    }
+    
+    /**
+     * @return the index of the content items by subject and type, it is
+     * updated as content items are enhanced
+     */
+    FilterIndex getFilterIndex() {
+        return filterIndex;
+    }
+    
+    /**
+     * @return the timings of the enhancement chains by chain name
+     */
+    Map<String, Timing> getChainTimings() {
+        return chainSelector.getTimings();
+    }
+    
+    /**
+     * @return the timings of the stages of generating metadata by stage
+     */
+    Map<String, Timing> getStageTimings() {
+        return Collections.unmodifiableMap(stageTimings);
+    }
+    
+    /**
+     * Builds the filter index of the content graph. Views computed before
+     * don't use the index and so start a new generation.
+     */
+    void buildFilterIndex(Graph contentGraph) {
+        filterIndex.build(contentGraph);
+        generation.incrementAndGet();
+    }
 
+    /**
+     * @return the number of contents queued or being enhanced
+     * asynchronously
+     */
+    int getPendingEnhancementCount() {
+        return enhancementQueue.getPendingCount();
     }
     
     private Graph getEnhancementGraph() {
@@ -113,35 +438,314 @@ public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
     }
     
     public void generate(GraphNode node, byte[] data, MediaType mediaType) {
-        System.out.println("generating metadata");
+        //the content itself has just been added
+        generation.incrementAndGet();
+        final Collection<EnhancementTask> tasks = collector.get();
+        if (tasks != null) {
+            tasks.add(new EnhancementTask(node, data, mediaType));
+            return;
+        }
+        enhance(node, data, mediaType);
+    }
+    
+    /**
+     * Stores the content using the DiscobitsHandler but enhances it 
+     * asynchronously.
+     * 
+     * @return false if the content was not stored because the enhancement
+     * queue is full
+     */
+    boolean putAndEnqueue(final DiscobitsHandler discobitsHandler, 
+            final IRI contentUri, final MediaType mediaType, final byte[] data) {
+        if (!enhancementQueue.tryReserve()) {
+            return false;
+        }
+        final List<EnhancementTask> tasks = new ArrayList<EnhancementTask>(1);
+        collector.set(tasks);
+        try {
+            discobitsHandler.put(contentUri, mediaType, data);
+        } catch (RuntimeException ex) {
+            enhancementQueue.cancelReservation();
+            throw ex;
+        } finally {
+            collector.remove();
+        }
+        if (tasks.isEmpty()) {
+            enhancementQueue.cancelReservation();
+            return true;
+        }
+        //the put generates the metadata of the one content it stores
+        final EnhancementTask task = tasks.get(0);
+        final String chainName = chainSelector.select(task.mediaType, task.data.length);
+        enhancementQueue.submit(contentUri, chainName, new Runnable() {
+            public void run() {
+                AccessController.doPrivileged(new PrivilegedAction<Object>() {
+                    public Object run() {
+                        commit(Collections.singletonList(computeEnhancement(
+                                task.node, task.data, task.mediaType, chainName)));
+                        return null;
+                    }
+                });
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * @return the state of the asynchronous enhancement of the specified
+     * content item or null if it is not queued, running or recently failed
+     */
+    EnhancementQueue.State getEnhancementState(IRI contentUri) {
+        return enhancementQueue.getState(contentUri);
+    }
+    
+    /**
+     * Runs the specified puts collecting the contents passed to generate. The 
+     * collected contents are then enhanced concurrently and the resulting 
+     * metadata is added with one write per target graph.
+     * 
+     * @param puts invoking DiscobitsHandler.put for the contents to store
+     * @return the contents for which enhancement failed with the respective 
+     * exception
+     */
+    Map<IRI, RuntimeException> enhanceBatch(final Runnable puts) {
+        final List<EnhancementTask> tasks = new ArrayList<EnhancementTask>();
+        collector.set(tasks);
+        try {
+            puts.run();
+        } finally {
+            collector.remove();
+        }
+        final Enhancement[] results = new Enhancement[tasks.size()];
+        final Map<IRI, RuntimeException> errors = new ConcurrentHashMap<IRI, RuntimeException>();
+        final CountDownLatch latch = new CountDownLatch(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            final int position = i;
+            final EnhancementTask task = tasks.get(i);
+            final IRI contentUri = (IRI) task.node.getNode();
+            final String chainName = chainSelector.select(task.mediaType, task.data.length);
+            try {
+                enhancementQueue.reserve();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for enhancement slot", ex);
+            }
+            try {
+                enhancementQueue.submit(contentUri, chainName, new Runnable() {
+                    public void run() {
+                        try {
+                            results[position] = AccessController.doPrivileged(
+                                    new PrivilegedAction<Enhancement>() {
+                                public Enhancement run() {
+                                    return computeEnhancement(task.node, task.data,
+                                            task.mediaType, chainName);
+                                }
+                            });
+                        } catch (RuntimeException ex) {
+                            errors.put(contentUri, ex);
+                            throw ex;
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                errors.put(contentUri, ex);
+                latch.countDown();
+            }
+        }
         try {
-            node.addProperty(RDF.type, ECS.ContentItem);
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for enhancements", ex);
+        }
+        final List<Enhancement> enhancements = new ArrayList<Enhancement>(results.length);
+        for (Enhancement enhancement : results) {
+            if (enhancement != null) {
+                enhancements.add(enhancement);
+            }
+        }
+        commit(enhancements);
+        return errors;
+    }
+    
+    /**
+     * Enhances on the calling thread, waiting for the chain if it is used
+     * by as many enhancements as its limit allows.
+     */
+    private void enhance(GraphNode node, byte[] data, MediaType mediaType) {
+        final String chainName = chainSelector.select(mediaType, data.length);
+        try {
+            chainSelector.acquire(chainName);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for chain", ex);
+        }
+        final Enhancement enhancement;
+        try {
+            enhancement = computeEnhancement(node, data, mediaType, chainName);
+        } finally {
+            chainSelector.release(chainName);
+            enhancementQueue.chainReleased(chainName);
+        }
+        commit(Collections.singletonList(enhancement));
+    }
+    
+    /**
+     * Runs the enhancement chain and computes the triples to be added,
+     * without modifying any persistent graph. The caller must hold a permit
+     * of the chain.
+     */
+    private Enhancement computeEnhancement(GraphNode node, byte[] data, MediaType mediaType,
+            String chainName) {
+        log.debug("Generating metadata for {}", node.getNode());
+        final long start = System.nanoTime();
+        try {
+            final Graph additions = new SimpleGraph();
+            final GraphNode additionsNode = new GraphNode(node.getNode(), additions);
+            additionsNode.addProperty(RDF.type, ECS.ContentItem);
             final ContentSource contentSource = new ByteArraySource(
                     data, mediaType.toString());
             final ContentItem contentItem = contentItemFactory.createContentItem(
                     (IRI) node.getNode(), contentSource);
-            final String chainName = "default";
             final Chain chain = chainManager.getChain(chainName);
             if (chain == null) {
                 throw new RuntimeException("No chain by that name: " + chainName);
             }
-            enhancementJobManager.enhanceContent(contentItem, chain);
+            long stageStart = System.nanoTime();
+            try {
+                enhancementJobManager.enhanceContent(contentItem, chain);
+            } finally {
+                final long chainNanos = System.nanoTime() - stageStart;
+                chainSelector.record(chainName, chainNanos);
+                chainTime.record(chainNanos);
+            }
+            stageStart = System.nanoTime();
             Blob textBlob =
                     ContentItemHelper.getBlob(contentItem,
                     Collections.singleton("text/plain")).getValue();
             String content = ContentItemHelper.getText(textBlob);
-            node.addPropertyValue(SIOC.content, content);
-            addDirectProperties(node, contentItem.getMetadata());
-            addSubjects(node, contentItem.getMetadata());
-            getEnhancementGraph().addAll(contentItem.getMetadata());
+            additionsNode.addPropertyValue(SIOC.content, content);
+            snippetIndex.put((IRI) node.getNode(), content);
+            //stored so that result pages needn't load the content
+            additionsNode.addProperty(ECS.textPreview,
+                    new PlainLiteralImpl(TextPreviews.preview(content)));
+            for (String sentence : TextPreviews.leadSentences(content, leadSentences,
+                    Locale.ENGLISH)) {
+                additionsNode.addProperty(ECS.snippet, new PlainLiteralImpl(sentence));
+            }
+            textTime.record(System.nanoTime() - stageStart);
+            stageStart = System.nanoTime();
+            addDirectProperties(additionsNode, contentItem.getMetadata());
+            final Set<IRI> entities = addSubjects(additionsNode, node,
+                    contentItem.getMetadata());
+            entitiesTime.record(System.nanoTime() - stageStart);
+            stageStart = System.nanoTime();
+            retention.apply(contentItem.getMetadata(), EnhancementRetention.getEnhancements(
+                    contentItem.getMetadata(), (IRI) node.getNode()));
+            retentionTime.record(System.nanoTime() - stageStart);
+            return new Enhancement((IRI) node.getNode(), node.getGraph(), additions,
+                    contentItem.getMetadata(), entities);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } catch (EnhancementException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            enhancementTime.record(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Adds the triples computed for the content items, taking the write lock
+     * of every target graph only once.
+     */
+    private void commit(Collection<Enhancement> enhancements) {
+        if (enhancements.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final Map<Graph, List<Enhancement>> enhancementsByGraph = new HashMap<Graph, List<Enhancement>>();
+        for (Enhancement enhancement : enhancements) {
+            List<Enhancement> graphEnhancements = enhancementsByGraph.get(enhancement.contentGraph);
+            if (graphEnhancements == null) {
+                graphEnhancements = new ArrayList<Enhancement>();
+                enhancementsByGraph.put(enhancement.contentGraph, graphEnhancements);
+            }
+            graphEnhancements.add(enhancement);
+        }
+        final Literal modified = LiteralFactory.getInstance().createTypedLiteral(new Date());
+        for (Map.Entry<Graph, List<Enhancement>> entry : enhancementsByGraph.entrySet()) {
+            addContentItems(entry.getKey(), entry.getValue(), modified, filterIndex);
+        }
+        replaceEnhancements(getEnhancementGraph(), enhancements);
+        generation.incrementAndGet();
+        for (Enhancement enhancement : enhancements) {
+            for (IRI entity : enhancement.entities) {
+                entityDescriptionCache.invalidate(entity);
+            }
+        }
+        commitTime.record(System.nanoTime() - start);
+    }
+    
+    /**
+     * Adds the additions of the enhancements and sets the modification date
+     * of the content items, so that they can be found by an incremental 
+     * re-indexing. The previous descriptions of the entities described in
+     * the additions are removed.
+     */
+    private static void addContentItems(Graph target, List<Enhancement> enhancements,
+            Literal modified, FilterIndex filterIndex) {
+        final Lock l = target.getLock().writeLock();
+        l.lock();
+        try {
+            for (Enhancement enhancement : enhancements) {
+                final Iterator<Triple> oldModified = target.filter(
+                        enhancement.contentItem, DCTERMS.modified, null);
+                while (oldModified.hasNext()) {
+                    oldModified.next();
+                    oldModified.remove();
+                }
+                for (IRI entity : enhancement.entities) {
+                    final List<Triple> description = new ArrayList<Triple>();
+                    collectDescription(target, entity, description, 0);
+                    target.removeAll(description);
+                }
+                target.addAll(enhancement.additions);
+                target.add(new TripleImpl(enhancement.contentItem, DCTERMS.modified, modified));
+                filterIndex.add(enhancement.contentItem, target);
+            }
+        } finally {
+            l.unlock();
+        }
+    }
+    
+    /**
+     * Adds the enhancements of the content items, replacing the ones of
+     * previous enhancements of the same content items.
+     */
+    private static void replaceEnhancements(Graph target, Collection<Enhancement> enhancements) {
+        final Lock l = target.getLock().writeLock();
+        l.lock();
+        try {
+            for (Enhancement enhancement : enhancements) {
+                EnhancementRetention.removeEnhancements(target, enhancement.contentItem);
+                target.addAll(enhancement.metadata);
+            }
+        } finally {
+            l.unlock();
         }
     }
 
-    private void addSubjects(GraphNode node, Graph metadata) {
+    /**
+     * Adds the subjects to the node. The descriptions of the subjects are
+     * added unless the content graph already has the same description, only
+     * the triples with the subject as subject and the blank nodes they lead
+     * to are compared.
+     * 
+     * @return the subjects of which descriptions were added
+     */
+    Set<IRI> addSubjects(GraphNode node, GraphNode storedNode, Graph metadata) {
         final GraphNode enhancementType 
                 = new GraphNode(TechnicalClasses.ENHANCER_ENHANCEMENT, metadata);
         final Set<IRI> entities = new HashSet<IRI>();
@@ -158,22 +762,100 @@ public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
         
         //not just iterating over the added entities but also over the ones 
         //it might already have
-        final Iterator<RDFTerm> subjects = node.getObjects(DC.subject);
-        final Set<RDFTerm> subjectSet = new HashSet<RDFTerm>();
-        while (subjects.hasNext()) {   
-            RDFTerm subject = subjects.next();
-            subjectSet.add(subject);
+        final Set<RDFTerm> subjectSet = new HashSet<RDFTerm>(entities);
+        //the fingerprints of the descriptions in the content graph
+        final Map<IRI, Long> storedFingerprints = new HashMap<IRI, Long>();
+        final Lock l = storedNode.readLock();
+        l.lock();
+        try {
+            final Iterator<RDFTerm> subjects = storedNode.getObjects(DC.subject);
+            while (subjects.hasNext()) {   
+                RDFTerm subject = subjects.next();
+                subjectSet.add(subject);
+            }
+            for (RDFTerm subject : subjectSet) {
+                if (subject instanceof IRI) {
+                    storedFingerprints.put((IRI) subject,
+                            fingerprint(storedNode.getGraph(), (IRI) subject, 0));
+                }
+            }
+        } finally {
+            l.unlock();
         }
+        final Set<IRI> describedSubjects = new HashSet<IRI>();
         for (RDFTerm subject : subjectSet) {
             if (!(subject instanceof IRI)) continue;
-            final Graph mGraph = node.getGraph();
+            final Graph description = new SimpleGraph();
             //We don't get the entity description directly from metadat
             //as the context there would include all documents this is the subject of
-            addResourceDescription((IRI) subject, mGraph);
-            final GraphNode graphNode = new GraphNode(subject, metadata);
-            //addDirectProperties or CBD instead of full context might be enough
-            //addCBD(graphNode, mGraph);
-            mGraph.addAll(graphNode.getNodeContext());
+            addResourceDescription((IRI) subject, description);
+            addContext(new GraphNode(subject, metadata), description);
+            if (fingerprint(description, (IRI) subject, 0)
+                    == storedFingerprints.get((IRI) subject)) {
+                continue;
+            }
+            node.getGraph().addAll(description);
+            describedSubjects.add((IRI) subject);
+        }
+        return describedSubjects;
+    }
+    
+    private void addContext(GraphNode entityNode, Graph target) {
+        switch (entityContext) {
+            case DIRECT:
+                final Iterator<Triple> triples = entityNode.getGraph().filter(
+                        (BlankNodeOrIRI) entityNode.getNode(), null, null);
+                while (triples.hasNext()) {
+                    final Triple triple = triples.next();
+                    if (!(triple.getObject() instanceof BlankNode)) {
+                        target.add(triple);
+                    }
+                }
+                break;
+            case CBD:
+                addCBD(entityNode, target);
+                break;
+            default:
+                target.addAll(entityNode.getNodeContext());
+        }
+    }
+    
+    /**
+     * Computes a hash of the triples with the node as subject independent of
+     * their order. Blank node objects are hashed by their own triples rather
+     * than by their identity, so that the hash is the same in every graph.
+     */
+    private static long fingerprint(Graph graph, BlankNodeOrIRI node, int depth) {
+        long result = 0;
+        final Iterator<Triple> triples = graph.filter(node, null, null);
+        while (triples.hasNext()) {
+            final Triple triple = triples.next();
+            final RDFTerm object = triple.getObject();
+            final long objectHash;
+            if (object instanceof BlankNode) {
+                objectHash = depth < MAX_BLANK_NODE_DEPTH
+                        ? fingerprint(graph, (BlankNode) object, depth + 1) : 0;
+            } else {
+                objectHash = object.hashCode();
+            }
+            result += (31L * triple.getPredicate().hashCode() + objectHash) * 1000003L + 1;
+        }
+        return result;
+    }
+    
+    /**
+     * Adds the triples with the node as subject and those of the blank nodes
+     * they lead to, as compared by the fingerprint.
+     */
+    private static void collectDescription(Graph graph, BlankNodeOrIRI node,
+            Collection<Triple> target, int depth) {
+        final Iterator<Triple> triples = graph.filter(node, null, null);
+        while (triples.hasNext()) {
+            final Triple triple = triples.next();
+            target.add(triple);
+            if ((triple.getObject() instanceof BlankNode) && (depth < MAX_BLANK_NODE_DEPTH)) {
+                collectDescription(graph, (BlankNode) triple.getObject(), target, depth + 1);
+            }
         }
     }
     
@@ -183,14 +865,7 @@ public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
      * 
      */
     private void addResourceDescription(IRI iri, Graph mGraph) {
-        final Entity entity = siteManager.getEntity(iri.getUnicodeString());
-        if (entity != null) {
-            final RdfValueFactory valueFactory = new RdfValueFactory(mGraph);
-            final Representation representation = entity.getRepresentation();
-            if (representation != null) {
-                valueFactory.toRdfRepresentation(representation);
-            }
-        }
+        mGraph.addAll(entityDescriptionCache.getRepresentation(iri));
     }
 
     private void addDirectProperties(GraphNode node, Graph metadata) {
@@ -221,9 +896,45 @@ public class StanbolEnhancerMetadataGenerator implements MetaDataGenerator {
                 sl.unlock();
             }
             for (RDFTerm resource : objects) {
-                addCBD(new GraphNode(resource, sourceGraph), target);
+                if (resource instanceof BlankNode) {
+                    addCBD(new GraphNode(resource, sourceGraph), target);
+                }
             }
         }
     }
 
+    /**
+     * The triples resulting from the enhancement of a content item.
+     */
+    private static class Enhancement {
+
+        final IRI contentItem;
+        final Graph contentGraph;
+        final Graph additions;
+        final Graph metadata;
+        final Set<IRI> entities;
+
+        Enhancement(IRI contentItem, Graph contentGraph, Graph additions,
+                Graph metadata, Set<IRI> entities) {
+            this.contentItem = contentItem;
+            this.contentGraph = contentGraph;
+            this.additions = additions;
+            this.metadata = metadata;
+            this.entities = entities;
+        }
+    }
+
+    private static class EnhancementTask {
+
+        final GraphNode node;
+        final byte[] data;
+        final MediaType mediaType;
+
+        EnhancementTask(GraphNode node, byte[] data, MediaType mediaType) {
+            this.node = node;
+            this.data = data;
+            this.mediaType = mediaType;
+        }
+    }
+
 }
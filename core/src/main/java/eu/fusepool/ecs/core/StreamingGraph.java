@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+import org.apache.clerezza.commons.rdf.impl.utils.AbstractGraph;
+
+/**
+ * A graph that writes added triples to a TripleStreamWriter instead of
+ * keeping them, it thus always appears empty. Failures writing are thrown
+ * as StreamingGraph.WriteException.
+ *
+ * @author Reto
+ */
+class StreamingGraph extends AbstractGraph {
+
+    private final TripleStreamWriter writer;
+
+    StreamingGraph(TripleStreamWriter writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    protected boolean performAdd(Triple triple) {
+        try {
+            writer.write(triple);
+        } catch (IOException ex) {
+            throw new WriteException(ex);
+        }
+        return true;
+    }
+
+    @Override
+    protected Iterator<Triple> performFilter(BlankNodeOrIRI subject, IRI predicate,
+            RDFTerm object) {
+        return Collections.<Triple>emptyList().iterator();
+    }
+
+    @Override
+    protected int performSize() {
+        return 0;
+    }
+
+    static class WriteException extends RuntimeException {
+
+        WriteException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
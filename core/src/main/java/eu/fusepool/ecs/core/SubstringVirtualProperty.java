@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.clerezza.rdf.cris.JoinVirtualProperty;
+import org.apache.clerezza.rdf.cris.VirtualProperty;
+import org.apache.clerezza.rdf.utils.GraphNode;
+
+/**
+ * A virtual property which has as values the beginnings of all suffixes of
+ * the joined value of some properties. For every position in the joined
+ * (lower-cased) value there is a value starting at this position of at most
+ * <code>maxLength</code> characters.
+ *
+ * A value of the joined properties contains a string of at most
+ * <code>maxLength</code> characters iff one of the values of this property
+ * starts with that string. So the substring search
+ * <code>*string*</code> on the joined property can be replaced with the
+ * prefix search <code>string*</code> on this property, which doesn't need to
+ * scan the whole term dictionary. The index grows by about
+ * <code>maxLength</code> times the length of the indexed text.
+ *
+ * @author Reto
+ */
+class SubstringVirtualProperty extends JoinVirtualProperty {
+
+    private final int maxLength;
+
+    SubstringVirtualProperty(List<VirtualProperty> properties, int maxLength) {
+        super(properties, false);
+        this.maxLength = maxLength;
+        this.stringKey = "S" + maxLength + "-" + stringKey;
+    }
+
+    /**
+     * @return the maximum length of a search string that can be looked up
+     * with a prefix search on this property
+     */
+    int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    protected List<String> value(GraphNode node) {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (String joined : super.value(node)) {
+            addSubstrings(joined.toLowerCase(), result);
+        }
+        return new ArrayList<String>(result);
+    }
+
+    private void addSubstrings(String value, Set<String> result) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            result.add(value.substring(i, Math.min(i + maxLength, length)));
+        }
+    }
+}
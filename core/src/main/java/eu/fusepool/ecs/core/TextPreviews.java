@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Computes the query independent previews of a text.
+ *
+ * @author Reto
+ */
+class TextPreviews {
+
+    /**
+     * Only this many characters at the beginning of a text are searched for
+     * leading sentences
+     */
+    private static final int MAX_SENTENCE_SCAN = 4096;
+
+    private TextPreviews() {
+    }
+
+    /**
+     * @return the first PREVIEW_LENGTH characters of the text on a single
+     * line
+     */
+    static String preview(String text) {
+        return normalize(text.substring(0,
+                Math.min(ContentStoreImpl.PREVIEW_LENGTH, text.length())));
+    }
+
+    /**
+     * Returns the first sentences of a text, sentences longer than twice the
+     * PREVIEW_LENGTH are truncated.
+     *
+     * @param count the maximum number of sentences
+     */
+    static List<String> leadSentences(String text, int count, Locale locale) {
+        final List<String> result = new ArrayList<String>(count);
+        final String head = text.substring(0, Math.min(MAX_SENTENCE_SCAN, text.length()));
+        final BreakIterator sentences = BreakIterator.getSentenceInstance(locale);
+        sentences.setText(head);
+        int start = sentences.first();
+        int end = sentences.next();
+        while ((end != BreakIterator.DONE) && (result.size() < count)) {
+            final String sentence = normalize(head.substring(start,
+                    Math.min(end, start + 2 * ContentStoreImpl.PREVIEW_LENGTH))).trim();
+            if (sentence.length() > 0) {
+                result.add(sentence);
+            }
+            start = end;
+            end = sentences.next();
+        }
+        return result;
+    }
+
+    private static String normalize(String text) {
+        return text.replace('\n', ' ').replace("\r", "");
+    }
+}
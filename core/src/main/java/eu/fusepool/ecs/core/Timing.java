@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number, total and maximum duration of invocations, together with a
+ * histogram of the durations. The histogram has a bucket per power of two
+ * nanoseconds, so recording a duration doesn't allocate.
+ *
+ * @author Reto
+ */
+class Timing {
+
+    /**
+     * The number of buckets, bucket i counts durations from 2^i to
+     * 2^(i+1)-1 nanoseconds, bucket 0 also counts durations of 0
+     */
+    static final int BUCKETS = 64;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Creates a timing and registers it with the specified name.
+     */
+    static Timing create(Map<String, Timing> registry, String name) {
+        final Timing timing = new Timing();
+        registry.put(name, timing);
+        return timing;
+    }
+
+    void record(long nanos) {
+        count.incrementAndGet();
+        buckets.incrementAndGet(nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while ((nanos > max) && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return the number of durations recorded in the bucket
+     */
+    long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+}
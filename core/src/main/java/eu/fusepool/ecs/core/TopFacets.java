@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+/**
+ * Selects the facet values with the highest counts out of any number of
+ * offered values, using a heap bounded to the number of values to be
+ * selected rather than sorting all values.
+ *
+ * Values with the same count are ordered by their lexical form. After
+ * <code>finish</code> has been called the selected values can be accessed
+ * by position, highest count first.
+ *
+ * @author Reto
+ */
+class TopFacets {
+
+    private final String[] values;
+    private final int[] counts;
+    private int size = 0;
+    private boolean finished = false;
+
+    /**
+     * @param maxFacets the maximum number of values to select
+     */
+    TopFacets(int maxFacets) {
+        final int capacity = Math.max(maxFacets, 0);
+        values = new String[capacity];
+        counts = new int[capacity];
+    }
+
+    void offer(String value, int count) {
+        if (finished) {
+            throw new IllegalStateException("Already finished");
+        }
+        if (size < values.length) {
+            values[size] = value;
+            counts[size] = count;
+            siftUp(size++);
+        } else if ((size > 0) && isWorse(0, value, count)) {
+            //replace the worst value selected so far
+            values[0] = value;
+            counts[0] = count;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Orders the selected values, highest count first.
+     */
+    void finish() {
+        if (finished) {
+            return;
+        }
+        //heap sort, moving the worst remaining value to the end
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        finished = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String getValue(int position) {
+        checkFinished();
+        return values[position];
+    }
+
+    int getCount(int position) {
+        checkFinished();
+        return counts[position];
+    }
+
+    private void checkFinished() {
+        if (!finished) {
+            throw new IllegalStateException("finish() must be called first");
+        }
+    }
+
+    /**
+     * @return true if the value at the position ranks lower than the given
+     * value
+     */
+    private boolean isWorse(int position, String value, int count) {
+        if (counts[position] != count) {
+            return counts[position] < count;
+        }
+        return values[position].compareTo(value) > 0;
+    }
+
+    private boolean isWorse(int position, int otherPosition) {
+        return isWorse(position, values[otherPosition], counts[otherPosition]);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            final int parent = (position - 1) / 2;
+            if (!isWorse(position, parent)) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position, int end) {
+        while (true) {
+            final int left = 2 * position + 1;
+            if (left >= end) {
+                return;
+            }
+            int worst = left;
+            final int right = left + 1;
+            if ((right < end) && isWorse(right, left)) {
+                worst = right;
+            }
+            if (!isWorse(worst, position)) {
+                return;
+            }
+            swap(position, worst);
+            position = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final String value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        final int count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.clerezza.commons.rdf.BlankNode;
+import org.apache.clerezza.commons.rdf.BlankNodeOrIRI;
+import org.apache.clerezza.commons.rdf.IRI;
+import org.apache.clerezza.commons.rdf.Literal;
+import org.apache.clerezza.commons.rdf.RDFTerm;
+import org.apache.clerezza.commons.rdf.Triple;
+
+/**
+ * Writes triples to a stream as they are passed to it, without keeping
+ * them. Triples with the same subject should be passed one after another
+ * for a more compact output, but this is not required.
+ *
+ * @author Reto
+ */
+abstract class TripleStreamWriter {
+
+    static final String N_TRIPLES = "application/n-triples";
+    static final String TURTLE = "text/turtle";
+    static final String JSON_LD = "application/ld+json";
+    private static final String XSD_STRING = "http://www.w3.org/2001/XMLSchema#string";
+    private static final String RDF_LANG_STRING =
+            "http://www.w3.org/1999/02/22-rdf-syntax-ns#langString";
+    protected final Writer out;
+    private final Map<BlankNode, String> blankNodeLabels = new HashMap<BlankNode, String>();
+
+    protected TripleStreamWriter(OutputStream out) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    }
+
+    /**
+     * @return a writer for the media type or null if the media type is not
+     * supported
+     */
+    static TripleStreamWriter create(String mediaType, OutputStream out) throws IOException {
+        if (mediaType.equals(N_TRIPLES)) {
+            return new NTriplesWriter(out);
+        }
+        if (mediaType.equals(TURTLE)) {
+            return new TurtleWriter(out);
+        }
+        if (mediaType.equals(JSON_LD)) {
+            return new JsonLdWriter(out);
+        }
+        return null;
+    }
+
+    abstract void write(Triple triple) throws IOException;
+
+    void writeAll(Iterable<Triple> triples) throws IOException {
+        for (Triple triple : triples) {
+            write(triple);
+        }
+    }
+
+    /**
+     * Writes the buffered output, the stream can then be closed by the
+     * caller
+     */
+    void finish() throws IOException {
+        out.flush();
+    }
+
+    protected String getBlankNodeLabel(BlankNode blankNode) {
+        String label = blankNodeLabels.get(blankNode);
+        if (label == null) {
+            label = "b" + blankNodeLabels.size();
+            blankNodeLabels.put(blankNode, label);
+        }
+        return label;
+    }
+
+    /**
+     * @return the language of the literal or null
+     */
+    protected static String getLanguage(Literal literal) {
+        return literal.getLanguage() == null ? null : literal.getLanguage().toString();
+    }
+
+    /**
+     * @return the datatype of the literal or null if it is a plain string or
+     * has a language
+     */
+    protected static String getDataType(Literal literal) {
+        final IRI dataType = literal.getDataType();
+        if ((dataType == null) || (literal.getLanguage() != null)) {
+            return null;
+        }
+        final String dataTypeString = dataType.getUnicodeString();
+        if (dataTypeString.equals(XSD_STRING) || dataTypeString.equals(RDF_LANG_STRING)) {
+            return null;
+        }
+        return dataTypeString;
+    }
+
+    /**
+     * Writes terms in the N-Triples syntax, which is also valid Turtle.
+     */
+    private static abstract class NTriplesTermWriter extends TripleStreamWriter {
+
+        NTriplesTermWriter(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        protected void writeTerm(RDFTerm term) throws IOException {
+            if (term instanceof IRI) {
+                out.write('<');
+                final String iri = ((IRI) term).getUnicodeString();
+                for (int i = 0; i < iri.length(); i++) {
+                    final char c = iri.charAt(i);
+                    if ((c <= ' ') || ("<>\"{}|^`\\".indexOf(c) != -1)) {
+                        out.write(String.format("\\u%04X", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+                }
+                out.write('>');
+            } else if (term instanceof BlankNode) {
+                out.write("_:");
+                out.write(getBlankNodeLabel((BlankNode) term));
+            } else {
+                final Literal literal = (Literal) term;
+                out.write('"');
+                final String lexicalForm = literal.getLexicalForm();
+                for (int i = 0; i < lexicalForm.length(); i++) {
+                    final char c = lexicalForm.charAt(i);
+                    switch (c) {
+                        case '"':
+                            out.write("\\\"");
+                            break;
+                        case '\\':
+                            out.write("\\\\");
+                            break;
+                        case '\n':
+                            out.write("\\n");
+                            break;
+                        case '\r':
+                            out.write("\\r");
+                            break;
+                        case '\t':
+                            out.write("\\t");
+                            break;
+                        default:
+                            out.write(c);
+                    }
+                }
+                out.write('"');
+                final String language = getLanguage(literal);
+                final String dataType = getDataType(literal);
+                if (language != null) {
+                    out.write('@');
+                    out.write(language);
+                } else if (dataType != null) {
+                    out.write("^^");
+                    writeTerm(new IRI(dataType));
+                }
+            }
+        }
+    }
+
+    private static class NTriplesWriter extends NTriplesTermWriter {
+
+        NTriplesWriter(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        void write(Triple triple) throws IOException {
+            writeTerm(triple.getSubject());
+            out.write(' ');
+            writeTerm(triple.getPredicate());
+            out.write(' ');
+            writeTerm(triple.getObject());
+            out.write(" .\n");
+        }
+    }
+
+    /**
+     * Writes consecutive triples with the same subject as predicate object
+     * list.
+     */
+    private static class TurtleWriter extends NTriplesTermWriter {
+
+        private BlankNodeOrIRI subject = null;
+
+        TurtleWriter(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        void write(Triple triple) throws IOException {
+            if (triple.getSubject().equals(subject)) {
+                out.write(" ;\n    ");
+            } else {
+                if (subject != null) {
+                    out.write(" .\n");
+                }
+                subject = triple.getSubject();
+                writeTerm(subject);
+                out.write(' ');
+            }
+            writeTerm(triple.getPredicate());
+            out.write(' ');
+            writeTerm(triple.getObject());
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (subject != null) {
+                out.write(" .\n");
+            }
+            super.finish();
+        }
+    }
+
+    /**
+     * Writes expanded JSON-LD, consecutive triples with the same subject and
+     * predicate are written as one node object.
+     */
+    private static class JsonLdWriter extends TripleStreamWriter {
+
+        private BlankNodeOrIRI subject = null;
+        private IRI predicate = null;
+
+        JsonLdWriter(OutputStream out) throws IOException {
+            super(out);
+            this.out.write('[');
+        }
+
+        @Override
+        void write(Triple triple) throws IOException {
+            if (triple.getSubject().equals(subject) && triple.getPredicate().equals(predicate)) {
+                out.write(", ");
+            } else {
+                if (subject != null) {
+                    out.write("]},\n");
+                } else {
+                    out.write('\n');
+                }
+                subject = triple.getSubject();
+                predicate = triple.getPredicate();
+                out.write("{\"@id\": ");
+                writeString(getId(subject));
+                out.write(", ");
+                writeString(predicate.getUnicodeString());
+                out.write(": [");
+            }
+            final RDFTerm object = triple.getObject();
+            if (object instanceof Literal) {
+                final Literal literal = (Literal) object;
+                out.write("{\"@value\": ");
+                writeString(literal.getLexicalForm());
+                final String language = getLanguage(literal);
+                final String dataType = getDataType(literal);
+                if (language != null) {
+                    out.write(", \"@language\": ");
+                    writeString(language);
+                } else if (dataType != null) {
+                    out.write(", \"@type\": ");
+                    writeString(dataType);
+                }
+                out.write('}');
+            } else {
+                out.write("{\"@id\": ");
+                writeString(getId((BlankNodeOrIRI) object));
+                out.write('}');
+            }
+        }
+
+        @Override
+        void finish() throws IOException {
+            out.write(subject != null ? "]}\n]\n" : "]\n");
+            super.finish();
+        }
+
+        private String getId(BlankNodeOrIRI node) {
+            return node instanceof IRI ? ((IRI) node).getUnicodeString()
+                    : "_:" + getBlankNodeLabel((BlankNode) node);
+        }
+
+        private void writeString(String string) throws IOException {
+            out.write('"');
+            for (int i = 0; i < string.length(); i++) {
+                final char c = string.charAt(i);
+                if ((c == '"') || (c == '\\')) {
+                    out.write('\\');
+                    out.write(c);
+                } else if (c < ' ') {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('"');
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 Reto.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fusepool.ecs.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares RoaringBitmap with a BitSet holding the same values, with
+ * containers changing between array and bitmap.
+ *
+ * @author Reto
+ */
+public class RoaringBitmapTest {
+
+    /**
+     * Values span this many containers
+     */
+    private static final int CONTAINERS = 4;
+
+    @Test
+    public void addAndRemove() {
+        final Random random = new Random(1);
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        final BitSet expected = new BitSet();
+        //first grows the containers beyond the array size, then shrinks them
+        for (int i = 0; i < 40000; i++) {
+            final int value = random.nextInt(CONTAINERS << 16);
+            bitmap.add(value);
+            expected.set(value);
+        }
+        assertSame(expected, bitmap);
+        for (int i = 0; i < 60000; i++) {
+            final int value = random.nextInt(CONTAINERS << 16);
+            bitmap.remove(value);
+            expected.clear(value);
+        }
+        assertSame(expected, bitmap);
+        for (int value = 0; value < CONTAINERS << 16; value++) {
+            bitmap.remove(value);
+        }
+        Assert.assertEquals(0, bitmap.getCardinality());
+        Assert.assertEquals(0, bitmap.toArray().length);
+    }
+
+    @Test
+    public void and() {
+        final Random random = new Random(2);
+        //sparse and dense containers, so that all combinations are and-ed
+        final int[] sizes = {100, 3000, 5000, 60000};
+        for (int first : sizes) {
+            for (int second : sizes) {
+                final BitSet expected1 = new BitSet();
+                final RoaringBitmap bitmap1 = create(random, first, expected1);
+                final BitSet expected2 = new BitSet();
+                final RoaringBitmap bitmap2 = create(random, second, expected2);
+                final BitSet expected = (BitSet) expected1.clone();
+                expected.and(expected2);
+                assertSame(expected, bitmap1.and(bitmap2));
+                Assert.assertEquals(expected.cardinality(), bitmap1.andCardinality(bitmap2));
+                Assert.assertEquals(expected.cardinality(), bitmap2.andCardinality(bitmap1));
+                //the operands are unchanged
+                assertSame(expected1, bitmap1);
+                assertSame(expected2, bitmap2);
+            }
+        }
+    }
+
+    @Test
+    public void copy() {
+        final BitSet expected = new BitSet();
+        final RoaringBitmap bitmap = create(new Random(3), 20000, expected);
+        final RoaringBitmap copy = bitmap.copy();
+        assertSame(expected, copy);
+        copy.add(CONTAINERS << 16);
+        copy.remove(expected.nextSetBit(0));
+        assertSame(expected, bitmap);
+        Assert.assertEquals(expected.cardinality(), copy.getCardinality());
+        new RoaringBitmap().copy().add(1);
+    }
+
+    @Test
+    public void toArrayRange() {
+        final BitSet expected = new BitSet();
+        final RoaringBitmap bitmap = create(new Random(4), 20000, expected);
+        final int[] all = toArray(expected);
+        final int[][] ranges = {{0, 10}, {5, 5}, {100, 6000}, {all.length - 3, all.length + 10},
+            {all.length, all.length + 1}, {0, Integer.MAX_VALUE}};
+        for (int[] range : ranges) {
+            final int to = Math.min(range[1], all.length);
+            final int[] expectedRange = range[0] < to
+                    ? Arrays.copyOfRange(all, range[0], to) : new int[0];
+            Assert.assertArrayEquals(expectedRange, bitmap.toArray(range[0], range[1]));
+        }
+    }
+
+    @Test
+    public void toArrayAfter() {
+        final Random random = new Random(5);
+        final int[] sizes = {100, 60000};
+        for (int size : sizes) {
+            final BitSet expected = new BitSet();
+            final RoaringBitmap bitmap = create(random, size, expected);
+            for (int i = 0; i < 200; i++) {
+                final int after = random.nextInt(CONTAINERS << 16) - 1;
+                final int limit = random.nextInt((CONTAINERS << 16) + 1);
+                final int count = random.nextInt(100) + 1;
+                final int[] expectedValues = new int[count];
+                int filled = 0;
+                for (int value = expected.nextSetBit(after + 1);
+                        (value >= 0) && (value < limit) && (filled < count);
+                        value = expected.nextSetBit(value + 1)) {
+                    expectedValues[filled++] = value;
+                }
+                Assert.assertArrayEquals(Arrays.copyOf(expectedValues, filled),
+                        bitmap.toArrayAfter(after, limit, count));
+            }
+        }
+    }
+
+    @Test
+    public void sample() {
+        final Random random = new Random(6);
+        final int[] sizes = {10, 3000, 60000};
+        for (int size : sizes) {
+            final BitSet expected = new BitSet();
+            final RoaringBitmap bitmap = create(random, size, expected);
+            final int[] all = toArray(expected);
+            for (int count : new int[]{1, 7, 1000, all.length, all.length + 1}) {
+                final int[] sample = bitmap.sample(count);
+                if (count >= all.length) {
+                    Assert.assertArrayEquals(all, sample);
+                } else {
+                    Assert.assertEquals(count, sample.length);
+                    for (int k = 0; k < count; k++) {
+                        Assert.assertEquals(all[(int) ((long) k * all.length / count)],
+                                sample[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a bitmap with about <code>size</code> random values, which are
+     * also set in expected
+     */
+    private static RoaringBitmap create(Random random, int size, BitSet expected) {
+        final RoaringBitmap result = new RoaringBitmap();
+        for (int i = 0; i < size; i++) {
+            final int value = random.nextInt(CONTAINERS << 16);
+            result.add(value);
+            expected.set(value);
+        }
+        return result;
+    }
+
+    private static int[] toArray(BitSet bitSet) {
+        final int[] result = new int[bitSet.cardinality()];
+        int position = 0;
+        for (int value = bitSet.nextSetBit(0); value >= 0; value = bitSet.nextSetBit(value + 1)) {
+            result[position++] = value;
+        }
+        return result;
+    }
+
+    private static void assertSame(BitSet expected, RoaringBitmap actual) {
+        Assert.assertEquals(expected.cardinality(), actual.getCardinality());
+        Assert.assertArrayEquals(toArray(expected), actual.toArray());
+        for (int value = 0; value < (CONTAINERS + 1) << 16; value++) {
+            Assert.assertEquals(expected.get(value), actual.contains(value));
+        }
+    }
+}